@@ -19,6 +19,43 @@ public class NFSServerConfig
     @JsonProperty("list_operation_query_results_refresh_time_in_milliseconds") private int listOpQueryResultsRefreshTimeInMillis_;
     @JsonProperty("allow_overwrite_of_existing_files")                         private boolean allowOverwriteOfExistingFiles_;
     @JsonProperty("using_oracle_database")                                     private boolean usingOracleDB_;
+    @JsonProperty("read_handle_cache_max_handles")                             private int readHandleCacheMaxHandles_;
+    @JsonProperty("read_handle_cache_idle_timeout_in_milliseconds")            private int readHandleCacheIdleTimeoutInMillis_;
+    @JsonProperty("metrics_logging_interval_in_milliseconds")                  private int metricsLoggingIntervalInMillis_;
+    @JsonProperty("read_ahead_buffer_size_in_bytes")                           private int readAheadBufferSize_;
+    @JsonProperty("read_ahead_initial_window_size_in_bytes")                   private int readAheadInitialWindowSize_;
+    @JsonProperty("read_ahead_max_window_size_in_bytes")                       private int readAheadMaxWindowSize_;
+    @JsonProperty("read_ahead_max_memory_in_bytes")                            private long readAheadMaxMemory_;
+    @JsonProperty("block_cache_block_size_in_bytes")                           private int blockCacheBlockSize_;
+    @JsonProperty("block_cache_max_memory_in_bytes")                           private long blockCacheMaxMemory_;
+    @JsonProperty("block_cache_disk_directory")                                private String blockCacheDiskDirectory_;
+    @JsonProperty("block_cache_disk_max_size_in_bytes")                        private long blockCacheDiskMaxSize_;
+    @JsonProperty("read_streams_per_data_object")                              private int readStreamsPerDataObject_;
+    @JsonProperty("parallel_read_stripe_size_in_bytes")                        private int parallelReadStripeSize_;
+    @JsonProperty("small_object_max_size_in_bytes")                            private int smallObjectMaxSize_;
+    @JsonProperty("small_object_cache_max_memory_in_bytes")                    private long smallObjectCacheMaxMemory_;
+    @JsonProperty("write_behind_max_memory_in_bytes")                          private long writeBehindMaxMemory_;
+    @JsonProperty("write_behind_idle_flush_timeout_in_milliseconds")           private int writeBehindIdleFlushTimeout_;
+    @JsonProperty("write_handle_cache_idle_timeout_in_milliseconds")           private int writeHandleCacheIdleTimeout_;
+    @JsonProperty("write_behind_flush_size_in_bytes")                          private int writeBehindFlushSize_;
+    @JsonProperty("write_journal_directory")                                   private String writeJournalDirectory_;
+    @JsonProperty("write_streams_per_data_object")                             private int writeStreamsPerDataObject_;
+    @JsonProperty("parallel_write_threshold_in_bytes")                         private long parallelWriteThreshold_;
+    @JsonProperty("small_file_ingest_max_file_size_in_bytes")                  private int smallFileIngestMaxFileSizeInBytes_;
+    @JsonProperty("small_file_ingest_max_memory_in_bytes")                     private long smallFileIngestMaxMemoryInBytes_;
+    @JsonProperty("small_file_ingest_upload_delay_in_milliseconds")            private int smallFileIngestUploadDelayInMilliseconds_;
+    @JsonProperty("small_file_ingest_upload_threads")                          private int smallFileIngestUploadThreads_;
+    @JsonProperty("directory_listing_fetch_threads")                           private int directoryListingFetchThreads_;
+    @JsonProperty("group_membership_refresh_time_in_milliseconds")             private int groupMembershipRefreshTimeInMilliseconds_;
+    @JsonProperty("list_operation_trust_window_in_milliseconds")               private int listOperationTrustWindowInMilliseconds_;
+    @JsonProperty("directory_listing_spill_directory")                         private String directoryListingSpillDirectory_;
+    @JsonProperty("directory_listing_spill_threshold")                         private int directoryListingSpillThreshold_;
+    @JsonProperty("directory_listing_specific_query")                          private String directoryListingSpecificQuery_;
+    @JsonProperty("tree_walk_prefetch_depth")                                  private int treeWalkPrefetchDepth_;
+    @JsonProperty("tree_walk_prefetch_threads")                                private int treeWalkPrefetchThreads_;
+    @JsonProperty("write_handle_cache_max_handles")                            private int writeHandleCacheMaxHandles_;
+    @JsonProperty("directory_listing_strict_acl_policy")                       private boolean directoryListingStrictAclPolicy_;
+    @JsonProperty("read_handle_cache_threads")                                 private int readHandleCacheThreads_;
     
     // @formatter:off
     @JsonCreator
@@ -32,7 +69,44 @@ public class NFSServerConfig
                     @JsonProperty("user_type_refresh_time_in_milliseconds")                    Integer _userTypeRefreshTimeInMillis,
                     @JsonProperty("list_operation_query_results_refresh_time_in_milliseconds") Integer _listOpQueryResultsRefreshTimeInMillis,
                     @JsonProperty("allow_overwrite_of_existing_files")                         Boolean _allowOverwriteOfExistingFiles,
-                    @JsonProperty("using_oracle_database")                                     Boolean _usingOracleDB)
+                    @JsonProperty("using_oracle_database")                                     Boolean _usingOracleDB,
+                    @JsonProperty("read_handle_cache_max_handles")                             Integer _readHandleCacheMaxHandles,
+                    @JsonProperty("read_handle_cache_idle_timeout_in_milliseconds")            Integer _readHandleCacheIdleTimeoutInMillis,
+                    @JsonProperty("metrics_logging_interval_in_milliseconds")                  Integer _metricsLoggingIntervalInMillis,
+                    @JsonProperty("read_ahead_buffer_size_in_bytes")                           Integer _readAheadBufferSize,
+                    @JsonProperty("read_ahead_initial_window_size_in_bytes")                   Integer _readAheadInitialWindowSize,
+                    @JsonProperty("read_ahead_max_window_size_in_bytes")                       Integer _readAheadMaxWindowSize,
+                    @JsonProperty("read_ahead_max_memory_in_bytes")                            Long _readAheadMaxMemory,
+                    @JsonProperty("block_cache_block_size_in_bytes")                           Integer _blockCacheBlockSize,
+                    @JsonProperty("block_cache_max_memory_in_bytes")                           Long _blockCacheMaxMemory,
+                    @JsonProperty("block_cache_disk_directory")                                String _blockCacheDiskDirectory,
+                    @JsonProperty("block_cache_disk_max_size_in_bytes")                        Long _blockCacheDiskMaxSize,
+                    @JsonProperty("read_streams_per_data_object")                              Integer _readStreamsPerDataObject,
+                    @JsonProperty("parallel_read_stripe_size_in_bytes")                        Integer _parallelReadStripeSize,
+                    @JsonProperty("small_object_max_size_in_bytes")                            Integer _smallObjectMaxSize,
+                    @JsonProperty("small_object_cache_max_memory_in_bytes")                    Long _smallObjectCacheMaxMemory,
+                    @JsonProperty("write_behind_max_memory_in_bytes")                          Long _writeBehindMaxMemory,
+                    @JsonProperty("write_behind_idle_flush_timeout_in_milliseconds")           Integer _writeBehindIdleFlushTimeout,
+                    @JsonProperty("write_handle_cache_idle_timeout_in_milliseconds")           Integer _writeHandleCacheIdleTimeout,
+                    @JsonProperty("write_behind_flush_size_in_bytes")                          Integer _writeBehindFlushSize,
+                    @JsonProperty("write_journal_directory")                                   String _writeJournalDirectory,
+                    @JsonProperty("write_streams_per_data_object")                             Integer _writeStreamsPerDataObject,
+                    @JsonProperty("parallel_write_threshold_in_bytes")                         Long _parallelWriteThreshold,
+                    @JsonProperty("small_file_ingest_max_file_size_in_bytes")                  Integer _smallFileIngestMaxFileSizeInBytes,
+                    @JsonProperty("small_file_ingest_max_memory_in_bytes")                     Long _smallFileIngestMaxMemoryInBytes,
+                    @JsonProperty("small_file_ingest_upload_delay_in_milliseconds")            Integer _smallFileIngestUploadDelayInMilliseconds,
+                    @JsonProperty("small_file_ingest_upload_threads")                          Integer _smallFileIngestUploadThreads,
+                    @JsonProperty("directory_listing_fetch_threads")                           Integer _directoryListingFetchThreads,
+                    @JsonProperty("group_membership_refresh_time_in_milliseconds")             Integer _groupMembershipRefreshTimeInMilliseconds,
+                    @JsonProperty("list_operation_trust_window_in_milliseconds")               Integer _listOperationTrustWindowInMilliseconds,
+                    @JsonProperty("directory_listing_spill_directory")                         String _directoryListingSpillDirectory,
+                    @JsonProperty("directory_listing_spill_threshold")                         Integer _directoryListingSpillThreshold,
+                    @JsonProperty("directory_listing_specific_query")                          String _directoryListingSpecificQuery,
+                    @JsonProperty("tree_walk_prefetch_depth")                                  Integer _treeWalkPrefetchDepth,
+                    @JsonProperty("tree_walk_prefetch_threads")                                Integer _treeWalkPrefetchThreads,
+                    @JsonProperty("write_handle_cache_max_handles")                            Integer _writeHandleCacheMaxHandles,
+                    @JsonProperty("directory_listing_strict_acl_policy")                       Boolean _directoryListingStrictAclPolicy,
+                    @JsonProperty("read_handle_cache_threads")                                 Integer _readHandleCacheThreads)
     {
         ConfigUtils.throwIfNull(_port, "port");
         ConfigUtils.throwIfNull(_iRODSMountPoint, "irods_mount_point");
@@ -48,6 +122,43 @@ public class NFSServerConfig
         listOpQueryResultsRefreshTimeInMillis_ = ConfigUtils.withDefault(_listOpQueryResultsRefreshTimeInMillis, 30000);
         allowOverwriteOfExistingFiles_ = ConfigUtils.withDefault(_allowOverwriteOfExistingFiles, true);
         usingOracleDB_ = ConfigUtils.withDefault(_usingOracleDB, false);
+        readHandleCacheMaxHandles_ = ConfigUtils.withDefault(_readHandleCacheMaxHandles, 64);
+        readHandleCacheIdleTimeoutInMillis_ = ConfigUtils.withDefault(_readHandleCacheIdleTimeoutInMillis, 10000);
+        metricsLoggingIntervalInMillis_ = ConfigUtils.withDefault(_metricsLoggingIntervalInMillis, 0);
+        readAheadBufferSize_ = ConfigUtils.withDefault(_readAheadBufferSize, 1048576);
+        readAheadInitialWindowSize_ = ConfigUtils.withDefault(_readAheadInitialWindowSize, 2097152);
+        readAheadMaxWindowSize_ = ConfigUtils.withDefault(_readAheadMaxWindowSize, 16777216);
+        readAheadMaxMemory_ = ConfigUtils.withDefault(_readAheadMaxMemory, 268435456L);
+        blockCacheBlockSize_ = ConfigUtils.withDefault(_blockCacheBlockSize, 1048576);
+        blockCacheMaxMemory_ = ConfigUtils.withDefault(_blockCacheMaxMemory, 0L);
+        blockCacheDiskDirectory_ = ConfigUtils.withDefault(_blockCacheDiskDirectory, "");
+        blockCacheDiskMaxSize_ = ConfigUtils.withDefault(_blockCacheDiskMaxSize, 0L);
+        readStreamsPerDataObject_ = ConfigUtils.withDefault(_readStreamsPerDataObject, 1);
+        parallelReadStripeSize_ = ConfigUtils.withDefault(_parallelReadStripeSize, 1048576);
+        smallObjectMaxSize_ = ConfigUtils.withDefault(_smallObjectMaxSize, 65536);
+        smallObjectCacheMaxMemory_ = ConfigUtils.withDefault(_smallObjectCacheMaxMemory, 67108864L);
+        writeBehindMaxMemory_ = ConfigUtils.withDefault(_writeBehindMaxMemory, 0L);
+        writeBehindIdleFlushTimeout_ = ConfigUtils.withDefault(_writeBehindIdleFlushTimeout, 5000);
+        writeHandleCacheIdleTimeout_ = ConfigUtils.withDefault(_writeHandleCacheIdleTimeout, 0);
+        writeBehindFlushSize_ = ConfigUtils.withDefault(_writeBehindFlushSize, 4194304);
+        writeJournalDirectory_ = ConfigUtils.withDefault(_writeJournalDirectory, "");
+        writeStreamsPerDataObject_ = ConfigUtils.withDefault(_writeStreamsPerDataObject, 4);
+        parallelWriteThreshold_ = ConfigUtils.withDefault(_parallelWriteThreshold, 33554432L);
+        smallFileIngestMaxFileSizeInBytes_ = ConfigUtils.withDefault(_smallFileIngestMaxFileSizeInBytes, 0);
+        smallFileIngestMaxMemoryInBytes_ = ConfigUtils.withDefault(_smallFileIngestMaxMemoryInBytes, 268435456L);
+        smallFileIngestUploadDelayInMilliseconds_ = ConfigUtils.withDefault(_smallFileIngestUploadDelayInMilliseconds, 500);
+        smallFileIngestUploadThreads_ = ConfigUtils.withDefault(_smallFileIngestUploadThreads, 8);
+        directoryListingFetchThreads_ = ConfigUtils.withDefault(_directoryListingFetchThreads, 4);
+        groupMembershipRefreshTimeInMilliseconds_ = ConfigUtils.withDefault(_groupMembershipRefreshTimeInMilliseconds, 60000);
+        listOperationTrustWindowInMilliseconds_ = ConfigUtils.withDefault(_listOperationTrustWindowInMilliseconds, 0);
+        directoryListingSpillDirectory_ = ConfigUtils.withDefault(_directoryListingSpillDirectory, "");
+        directoryListingSpillThreshold_ = ConfigUtils.withDefault(_directoryListingSpillThreshold, 100000);
+        directoryListingSpecificQuery_ = ConfigUtils.withDefault(_directoryListingSpecificQuery, "");
+        treeWalkPrefetchDepth_ = ConfigUtils.withDefault(_treeWalkPrefetchDepth, 4);
+        treeWalkPrefetchThreads_ = ConfigUtils.withDefault(_treeWalkPrefetchThreads, 2);
+        writeHandleCacheMaxHandles_ = ConfigUtils.withDefault(_writeHandleCacheMaxHandles, 16);
+        directoryListingStrictAclPolicy_ = ConfigUtils.withDefault(_directoryListingStrictAclPolicy, false);
+        readHandleCacheThreads_ = ConfigUtils.withDefault(_readHandleCacheThreads, 4);
     }
     // @formatter:on
     
@@ -116,4 +227,226 @@ public class NFSServerConfig
     {
         return usingOracleDB_;
     }
+    
+    @JsonIgnore
+    public int getReadHandleCacheMaxHandles()
+    {
+        return readHandleCacheMaxHandles_;
+    }
+
+    @JsonIgnore
+    public int getReadHandleCacheIdleTimeoutInMilliseconds()
+    {
+        return readHandleCacheIdleTimeoutInMillis_;
+    }
+
+    @JsonIgnore
+    public int getMetricsLoggingIntervalInMilliseconds()
+    {
+        return metricsLoggingIntervalInMillis_;
+    }
+
+    @JsonIgnore
+    public int getReadAheadBufferSizeInBytes()
+    {
+        return readAheadBufferSize_;
+    }
+
+    @JsonIgnore
+    public int getReadAheadInitialWindowSizeInBytes()
+    {
+        return readAheadInitialWindowSize_;
+    }
+
+    @JsonIgnore
+    public int getReadAheadMaxWindowSizeInBytes()
+    {
+        return readAheadMaxWindowSize_;
+    }
+
+    @JsonIgnore
+    public long getReadAheadMaxMemoryInBytes()
+    {
+        return readAheadMaxMemory_;
+    }
+
+    @JsonIgnore
+    public int getBlockCacheBlockSizeInBytes()
+    {
+        return blockCacheBlockSize_;
+    }
+
+    @JsonIgnore
+    public long getBlockCacheMaxMemoryInBytes()
+    {
+        return blockCacheMaxMemory_;
+    }
+
+    @JsonIgnore
+    public String getBlockCacheDiskDirectory()
+    {
+        return blockCacheDiskDirectory_;
+    }
+
+    @JsonIgnore
+    public long getBlockCacheDiskMaxSizeInBytes()
+    {
+        return blockCacheDiskMaxSize_;
+    }
+
+    @JsonIgnore
+    public int getReadStreamsPerDataObject()
+    {
+        return readStreamsPerDataObject_;
+    }
+
+    @JsonIgnore
+    public int getParallelReadStripeSizeInBytes()
+    {
+        return parallelReadStripeSize_;
+    }
+
+    @JsonIgnore
+    public int getSmallObjectMaxSizeInBytes()
+    {
+        return smallObjectMaxSize_;
+    }
+
+    @JsonIgnore
+    public long getSmallObjectCacheMaxMemoryInBytes()
+    {
+        return smallObjectCacheMaxMemory_;
+    }
+
+    @JsonIgnore
+    public long getWriteBehindMaxMemoryInBytes()
+    {
+        return writeBehindMaxMemory_;
+    }
+
+    @JsonIgnore
+    public int getWriteBehindIdleFlushTimeoutInMilliseconds()
+    {
+        return writeBehindIdleFlushTimeout_;
+    }
+
+    @JsonIgnore
+    public int getWriteHandleCacheIdleTimeoutInMilliseconds()
+    {
+        return writeHandleCacheIdleTimeout_;
+    }
+
+    @JsonIgnore
+    public int getWriteBehindFlushSizeInBytes()
+    {
+        return writeBehindFlushSize_;
+    }
+
+    @JsonIgnore
+    public String getWriteJournalDirectory()
+    {
+        return writeJournalDirectory_;
+    }
+
+    @JsonIgnore
+    public int getWriteStreamsPerDataObject()
+    {
+        return writeStreamsPerDataObject_;
+    }
+
+    @JsonIgnore
+    public long getParallelWriteThresholdInBytes()
+    {
+        return parallelWriteThreshold_;
+    }
+
+    @JsonIgnore
+    public int getSmallFileIngestMaxFileSizeInBytes()
+    {
+        return smallFileIngestMaxFileSizeInBytes_;
+    }
+
+    @JsonIgnore
+    public long getSmallFileIngestMaxMemoryInBytes()
+    {
+        return smallFileIngestMaxMemoryInBytes_;
+    }
+
+    @JsonIgnore
+    public int getSmallFileIngestUploadDelayInMilliseconds()
+    {
+        return smallFileIngestUploadDelayInMilliseconds_;
+    }
+
+    @JsonIgnore
+    public int getSmallFileIngestUploadThreads()
+    {
+        return smallFileIngestUploadThreads_;
+    }
+
+    @JsonIgnore
+    public int getDirectoryListingFetchThreads()
+    {
+        return directoryListingFetchThreads_;
+    }
+
+    @JsonIgnore
+    public int getGroupMembershipRefreshTimeInMilliseconds()
+    {
+        return groupMembershipRefreshTimeInMilliseconds_;
+    }
+
+    @JsonIgnore
+    public int getListOperationTrustWindowInMilliseconds()
+    {
+        return listOperationTrustWindowInMilliseconds_;
+    }
+
+    @JsonIgnore
+    public String getDirectoryListingSpillDirectory()
+    {
+        return directoryListingSpillDirectory_;
+    }
+
+    @JsonIgnore
+    public int getDirectoryListingSpillThreshold()
+    {
+        return directoryListingSpillThreshold_;
+    }
+
+    @JsonIgnore
+    public String getDirectoryListingSpecificQuery()
+    {
+        return directoryListingSpecificQuery_;
+    }
+
+    @JsonIgnore
+    public int getTreeWalkPrefetchDepth()
+    {
+        return treeWalkPrefetchDepth_;
+    }
+
+    @JsonIgnore
+    public int getTreeWalkPrefetchThreads()
+    {
+        return treeWalkPrefetchThreads_;
+    }
+
+    @JsonIgnore
+    public int getWriteHandleCacheMaxHandles()
+    {
+        return writeHandleCacheMaxHandles_;
+    }
+
+    @JsonIgnore
+    public boolean isDirectoryListingStrictAclPolicy()
+    {
+        return directoryListingStrictAclPolicy_;
+    }
+
+    @JsonIgnore
+    public int getReadHandleCacheThreads()
+    {
+        return readHandleCacheThreads_;
+    }
 }
@@ -0,0 +1,409 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Caches the contents of data objects in fixed-size blocks stored outside of the
+// Java heap (direct ByteBuffers). Blocks are keyed by (data id, block index) and
+// are tagged with the version (modify time and size) of the data object they were
+// read from. A block whose version does not match the current version is a miss.
+//
+// Eviction uses a generalized CLOCK. Each block has a small usage counter which
+// the clock hand decrements, and blocks are evicted once the counter reaches zero.
+// New blocks start with a counter of zero and only hits outside of the correlated
+// reference period increment it. A large sequential scan therefore touches each of
+// its blocks once and does not push frequently used blocks out of the cache.
+class BlockCache
+{
+    private static final Logger log_ = LogManager.getLogger(BlockCache.class);
+
+    private static final int MAX_USAGE_COUNT = 3;
+    private static final long CORRELATED_REFERENCE_PERIOD_IN_MILLIS = 1000;
+
+    // Pin states of a slot. Positive values are the number of readers.
+    private static final int SLOT_UNPINNED = 0;
+    private static final int SLOT_LOCKED = -1;
+
+    // Identifies the contents of a data object at a specific point in time.
+    record Version(long modifyTime, long size) {}
+
+    private record BlockKey(long dataId, long blockIndex) {}
+
+    private final Metrics metrics_;
+    private final DiskBlockCache diskCache_;
+    private final int blockSize_;
+    private final int slotCount_;
+    private final Map<BlockKey, Integer> index_;
+    private final Map<Long, Integer> blockCounts_;
+    private final ByteBuffer[] buffers_;
+    private final BlockKey[] keys_;
+    private final Version[] versions_;
+    private final int[] lengths_;
+    private final long[] insertTimes_;
+    private final AtomicIntegerArray usageCounts_;
+    private final AtomicIntegerArray pins_;
+    private final InvalidationTracker invalidations_;
+    private final BufferPool stagingBuffers_;
+    private final AtomicLong bytesAllocated_;
+    private int clockHand_;
+
+    BlockCache(int _blockSize, long _maxMemory, DiskBlockCache _diskCache, Metrics _metrics)
+    {
+        metrics_ = _metrics;
+        diskCache_ = _diskCache;
+        blockSize_ = _blockSize;
+        slotCount_ = (_blockSize > 0) ? (int) Math.min(Integer.MAX_VALUE, _maxMemory / _blockSize) : 0;
+        index_ = new ConcurrentHashMap<>();
+        blockCounts_ = new ConcurrentHashMap<>();
+        buffers_ = new ByteBuffer[slotCount_];
+        keys_ = new BlockKey[slotCount_];
+        versions_ = new Version[slotCount_];
+        lengths_ = new int[slotCount_];
+        insertTimes_ = new long[slotCount_];
+        usageCounts_ = new AtomicIntegerArray(slotCount_);
+        pins_ = new AtomicIntegerArray(slotCount_);
+        invalidations_ = new InvalidationTracker();
+        stagingBuffers_ = new BufferPool(Math.max(0, _blockSize), Runtime.getRuntime().availableProcessors() * 2);
+        bytesAllocated_ = new AtomicLong();
+
+        metrics_.gauge("block_cache.bytes_allocated", bytesAllocated_::get);
+        metrics_.gauge("block_cache.blocks_cached", index_::size);
+    }
+
+    boolean isEnabled()
+    {
+        return blockSize_ > 0 && (slotCount_ > 0 || diskCache_.isEnabled());
+    }
+
+    int read(long _dataId,
+             Version _version,
+             ReadAheadEngine.Source _source,
+             byte[] _buffer,
+             int _bufferOffset,
+             long _offset,
+             int _count)
+        throws IOException
+    {
+        int bytesCopied = 0;
+
+        while (bytesCopied < _count)
+        {
+            final long position = _offset + bytesCopied;
+            final long blockIndex = position / blockSize_;
+            final int offsetInBlock = (int) (position % blockSize_);
+            final int length = Math.min(_count - bytesCopied, blockSize_ - offsetInBlock);
+            final int bufferOffset = _bufferOffset + bytesCopied;
+
+            int n = readFromCache(_dataId, blockIndex, _version, offsetInBlock, _buffer, bufferOffset, length);
+
+            if (n < 0)
+            {
+                n = readThroughCache(_dataId, blockIndex, _version, _source, offsetInBlock, _buffer, bufferOffset, length);
+            }
+
+            bytesCopied += n;
+
+            // A short block marks the end of the data object.
+            if (n < length)
+            {
+                break;
+            }
+        }
+
+        return bytesCopied;
+    }
+
+    void close()
+    {
+        diskCache_.close();
+    }
+
+    // Drops every block belonging to the data object. This must be called whenever
+    // the contents of the data object change.
+    void invalidate(long _dataId)
+    {
+        // Blocks being fetched right now must not be inserted once the fetch completes.
+        invalidations_.invalidate(_dataId);
+        diskCache_.invalidate(_dataId);
+
+        if (!blockCounts_.containsKey(_dataId))
+        {
+            return;
+        }
+
+        index_.forEach((key, slot) -> {
+            if (key.dataId() == _dataId)
+            {
+                evict(slot, key);
+            }
+        });
+    }
+
+    // Returns the number of bytes copied, or -1 if the block is not cached.
+    private int readFromCache(long _dataId,
+                              long _blockIndex,
+                              Version _version,
+                              int _offsetInBlock,
+                              byte[] _buffer,
+                              int _bufferOffset,
+                              int _length)
+    {
+        final BlockKey key = new BlockKey(_dataId, _blockIndex);
+        final Integer slot = index_.get(key);
+
+        if (null == slot || !pin(slot))
+        {
+            metrics_.increment("block_cache.misses");
+            return -1;
+        }
+
+        boolean stale = false;
+
+        try
+        {
+            // The slot may have been reused between the index lookup and the pin.
+            if (!key.equals(keys_[slot]))
+            {
+                metrics_.increment("block_cache.misses");
+                return -1;
+            }
+
+            if (!_version.equals(versions_[slot]))
+            {
+                metrics_.increment("block_cache.stale_blocks");
+                stale = true;
+                return -1;
+            }
+
+            if (System.currentTimeMillis() - insertTimes_[slot] > CORRELATED_REFERENCE_PERIOD_IN_MILLIS)
+            {
+                usageCounts_.getAndUpdate(slot, c -> Math.min(c + 1, MAX_USAGE_COUNT));
+            }
+
+            final int n = Math.max(0, Math.min(_length, lengths_[slot] - _offsetInBlock));
+            buffers_[slot].get(_offsetInBlock, _buffer, _bufferOffset, n);
+            metrics_.increment("block_cache.hits");
+
+            return n;
+        }
+        finally
+        {
+            pins_.decrementAndGet(slot);
+
+            if (stale)
+            {
+                evict(slot, key);
+            }
+        }
+    }
+
+    private int readThroughCache(long _dataId,
+                                 long _blockIndex,
+                                 Version _version,
+                                 ReadAheadEngine.Source _source,
+                                 int _offsetInBlock,
+                                 byte[] _buffer,
+                                 int _bufferOffset,
+                                 int _length)
+        throws IOException
+    {
+        byte[] staging = stagingBuffers_.acquire();
+        final boolean pooled = (null != staging);
+
+        if (!pooled)
+        {
+            staging = new byte[blockSize_];
+        }
+
+        try
+        {
+            final long token = invalidations_.token(_dataId);
+            final long diskCacheToken = diskCache_.getInvalidationToken(_dataId);
+            int blockLength = diskCache_.isEnabled() ? diskCache_.read(_dataId, _blockIndex, _version, staging) : -1;
+
+            if (blockLength < 0)
+            {
+                blockLength = fetch(_source, _blockIndex * blockSize_, staging);
+
+                if (diskCache_.isEnabled())
+                {
+                    diskCache_.put(_dataId, _blockIndex, _version, staging, blockLength, diskCacheToken);
+                }
+            }
+
+            insert(new BlockKey(_dataId, _blockIndex), _version, staging, blockLength, token);
+
+            final int n = Math.max(0, Math.min(_length, blockLength - _offsetInBlock));
+            System.arraycopy(staging, _offsetInBlock, _buffer, _bufferOffset, n);
+
+            return n;
+        }
+        finally
+        {
+            if (pooled)
+            {
+                stagingBuffers_.release(staging);
+            }
+        }
+    }
+
+    private int fetch(ReadAheadEngine.Source _source, long _blockOffset, byte[] _buffer) throws IOException
+    {
+        int blockLength = 0;
+
+        while (blockLength < blockSize_)
+        {
+            int bytesRead = _source.read(_buffer, blockLength, _blockOffset + blockLength, blockSize_ - blockLength);
+
+            if (bytesRead <= 0)
+            {
+                break;
+            }
+
+            blockLength += bytesRead;
+        }
+
+        return blockLength;
+    }
+
+    // Caches the block unless the data object was invalidated after the block was read.
+    private void insert(BlockKey _key, Version _version, byte[] _data, int _length, long _token)
+    {
+        if (0 == slotCount_ || !invalidations_.isCurrent(_key.dataId(), _token))
+        {
+            return;
+        }
+
+        final int slot = claimSlot();
+
+        if (slot < 0)
+        {
+            metrics_.increment("block_cache.insertions_skipped");
+            return;
+        }
+
+        if (null == buffers_[slot])
+        {
+            buffers_[slot] = ByteBuffer.allocateDirect(blockSize_);
+            bytesAllocated_.addAndGet(blockSize_);
+        }
+
+        buffers_[slot].put(0, _data, 0, _length);
+        keys_[slot] = _key;
+        versions_[slot] = _version;
+        lengths_[slot] = _length;
+        insertTimes_[slot] = System.currentTimeMillis();
+        usageCounts_.set(slot, 0);
+        blockCounts_.merge(_key.dataId(), 1, Integer::sum);
+
+        // Unlocking the slot publishes the writes above to readers.
+        final Integer previous = index_.put(_key, slot);
+        pins_.set(slot, SLOT_UNPINNED);
+
+        if (null != previous && previous != slot)
+        {
+            // Another thread cached the same block concurrently.
+            evict(previous, _key);
+        }
+
+        // The data object may have been invalidated while the block was being inserted.
+        if (!invalidations_.isCurrent(_key.dataId(), _token))
+        {
+            evict(slot, _key);
+        }
+    }
+
+    // Advances the clock hand until a slot can be reused. The returned slot is locked.
+    private synchronized int claimSlot()
+    {
+        // Bound the search so that a cache full of pinned blocks cannot spin forever.
+        for (int i = 0; i < slotCount_ * (MAX_USAGE_COUNT + 2); ++i)
+        {
+            final int slot = clockHand_;
+            clockHand_ = (clockHand_ + 1) % slotCount_;
+
+            if (pins_.get(slot) != SLOT_UNPINNED)
+            {
+                continue;
+            }
+
+            if (null != keys_[slot] && usageCounts_.getAndUpdate(slot, c -> Math.max(c - 1, 0)) > 0)
+            {
+                continue;
+            }
+
+            if (pins_.compareAndSet(slot, SLOT_UNPINNED, SLOT_LOCKED))
+            {
+                if (null != keys_[slot])
+                {
+                    log_.trace("claimSlot - Evicting block [{}] ...", keys_[slot]);
+                    metrics_.increment("block_cache.evictions");
+                    clearSlot(slot);
+                }
+
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    // Removes the block from the slot if the slot still holds it. Readers only pin
+    // a slot long enough to copy from it, so waiting for them is cheap.
+    private void evict(int _slot, BlockKey _key)
+    {
+        while (!pins_.compareAndSet(_slot, SLOT_UNPINNED, SLOT_LOCKED))
+        {
+            if (!_key.equals(keys_[_slot]))
+            {
+                return;
+            }
+
+            Thread.onSpinWait();
+        }
+
+        if (_key.equals(keys_[_slot]))
+        {
+            clearSlot(_slot);
+        }
+
+        pins_.set(_slot, SLOT_UNPINNED);
+    }
+
+    // The slot must be locked.
+    private void clearSlot(int _slot)
+    {
+        final BlockKey key = keys_[_slot];
+
+        index_.remove(key, _slot);
+        blockCounts_.computeIfPresent(key.dataId(), (k, n) -> (n > 1) ? n - 1 : null);
+        keys_[_slot] = null;
+        versions_[_slot] = null;
+        usageCounts_.set(_slot, 0);
+    }
+
+    private boolean pin(int _slot)
+    {
+        while (true)
+        {
+            final int pins = pins_.get(_slot);
+
+            if (pins < 0)
+            {
+                return false;
+            }
+
+            if (pins_.compareAndSet(_slot, pins, pins + 1))
+            {
+                return true;
+            }
+        }
+    }
+}
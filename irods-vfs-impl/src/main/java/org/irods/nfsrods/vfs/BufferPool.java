@@ -0,0 +1,58 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A bounded pool of fixed-size byte arrays. Buffers are allocated lazily and
+// recycled instead of being left to the garbage collector.
+class BufferPool
+{
+    private final int bufferSize_;
+    private final int maxBuffers_;
+    private final AtomicInteger allocated_;
+    private final ConcurrentLinkedQueue<byte[]> free_;
+
+    BufferPool(int _bufferSize, int _maxBuffers)
+    {
+        bufferSize_ = _bufferSize;
+        maxBuffers_ = _maxBuffers;
+        allocated_ = new AtomicInteger();
+        free_ = new ConcurrentLinkedQueue<>();
+    }
+
+    int getBufferSize()
+    {
+        return bufferSize_;
+    }
+
+    // Returns null if every buffer is in use.
+    byte[] acquire()
+    {
+        byte[] buffer = free_.poll();
+
+        if (null != buffer)
+        {
+            return buffer;
+        }
+
+        for (int n = allocated_.get(); n < maxBuffers_; n = allocated_.get())
+        {
+            if (allocated_.compareAndSet(n, n + 1))
+            {
+                return new byte[bufferSize_];
+            }
+        }
+
+        return null;
+    }
+
+    void release(byte[] _buffer)
+    {
+        free_.offer(_buffer);
+    }
+
+    int getBuffersInUse()
+    {
+        return allocated_.get() - free_.size();
+    }
+}
@@ -0,0 +1,75 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.function.Consumer;
+
+import javax.cache.configuration.CacheEntryListenerConfiguration;
+import javax.cache.configuration.Factory;
+import javax.cache.configuration.MutableCacheEntryListenerConfiguration;
+import javax.cache.event.CacheEntryEvent;
+import javax.cache.event.CacheEntryExpiredListener;
+import javax.cache.event.CacheEntryListener;
+import javax.cache.event.CacheEntryRemovedListener;
+import javax.cache.event.CacheEntryUpdatedListener;
+
+// Hands every value that leaves a cache (removed, expired or replaced) to a callback, so
+// that what the value holds on to (e.g. listing spill files) is released right away
+// instead of whenever the garbage collector gets to it.
+class CacheReleaseListener<V> implements CacheEntryRemovedListener<String, V>,
+                                         CacheEntryExpiredListener<String, V>,
+                                         CacheEntryUpdatedListener<String, V>
+{
+    private final Consumer<V> release_;
+
+    private CacheReleaseListener(Consumer<V> _release)
+    {
+        release_ = _release;
+    }
+
+    // Returns a listener configuration for MutableConfiguration.addCacheEntryListenerConfiguration().
+    // The listener is synchronous, so a value is released before the operation that
+    // displaced it returns.
+    static <V> CacheEntryListenerConfiguration<String, V> configurationOf(Consumer<V> _release)
+    {
+        final var listener = new CacheReleaseListener<V>(_release);
+        final Factory<CacheEntryListener<String, V>> factory = () -> listener;
+
+        final var oldValueRequired = true;
+        final var synchronous = true;
+
+        return new MutableCacheEntryListenerConfiguration<>(factory, null, oldValueRequired, synchronous);
+    }
+
+    @Override
+    public void onRemoved(Iterable<CacheEntryEvent<? extends String, ? extends V>> _events)
+    {
+        _events.forEach(e -> release(e, true));
+    }
+
+    @Override
+    public void onExpired(Iterable<CacheEntryEvent<? extends String, ? extends V>> _events)
+    {
+        _events.forEach(e -> release(e, true));
+    }
+
+    @Override
+    public void onUpdated(Iterable<CacheEntryEvent<? extends String, ? extends V>> _events)
+    {
+        _events.forEach(e -> release(e, false));
+    }
+
+    private void release(CacheEntryEvent<? extends String, ? extends V> _event, boolean _valueIsOld)
+    {
+        V value = _event.isOldValueAvailable() ? _event.getOldValue() : null;
+
+        // JCache 1.0 providers report the value of a removed or expired entry as its value.
+        if (null == value && _valueIsOld)
+        {
+            value = _event.getValue();
+        }
+
+        if (null != value)
+        {
+            release_.accept(value);
+        }
+    }
+}
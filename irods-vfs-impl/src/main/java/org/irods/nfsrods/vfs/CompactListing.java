@@ -0,0 +1,591 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+
+// Stores the entries of a directory listing column by column. A Jargon listing entry
+// holds a dozen objects (strings, dates and a list of permissions). Here, an entry
+// costs a few array slots. Names are stored relative to the collection as UTF-8 in a
+// shared byte array, times are kept as milliseconds, and owners and permission lists
+// are deduplicated into tables (the entries of a collection usually share a handful
+// of them).
+//
+// Once a listing reaches the spill threshold, its entries are moved to spill files on
+// local disk and every entry added after that is appended there. Only the owner and
+// permission tables stay on the heap, so a collection with millions of data objects
+// costs about as much heap as a small one. Entries are read back with positional reads
+// and are served from the page cache while the listing is in use. The files are unlinked
+// as soon as they are created, so their space is reclaimed when the listing is closed
+// (or, failing that, garbage collected, or NFSRODS stops).
+//
+// Spill record layout (big-endian, one record per entry):
+//
+//   name offset (8) | name length (4) | id (4) | type (1) | size (8)
+//   | create time (8) | modify time (8) | owner (4) | permissions (4)
+//
+// The names are kept in a separate file, one after the other.
+//
+// Not thread-safe. DirectoryListing serializes access.
+class CompactListing
+{
+    private static final Logger log_ = LogManager.getLogger(CompactListing.class);
+
+    private static final ObjectType[] OBJECT_TYPES = ObjectType.values();
+    private static final int RECORD_SIZE = 49;
+    private static final int WRITE_BUFFER_SIZE = 64 << 10;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final String collection_;
+    private final Path spillDirectory_;
+    private final int spillThreshold_;
+    private final List<String> ownerTable_;
+    private final Map<String, Integer> ownerIndexes_;
+    private final List<List<UserFilePermission>> permissionTable_;
+    private final Map<String, Integer> permissionIndexes_;
+    private byte[] names_;
+    private int namesLength_;
+    private int[] nameOffsets_;
+    private int[] ids_;
+    private byte[] types_;
+    private long[] sizes_;
+    private long[] createTimes_;
+    private long[] modifyTimes_;
+    private int[] owners_;
+    private int[] permissions_;
+    private int size_;
+    private Spill spill_;
+    private Cleaner.Cleanable cleanable_;
+
+    // _spillDirectory may be null, in which case the listing never leaves the heap.
+    CompactListing(String _collection, Path _spillDirectory, int _spillThreshold)
+    {
+        final int capacity = 16;
+
+        collection_ = _collection;
+        spillDirectory_ = _spillDirectory;
+        spillThreshold_ = _spillThreshold;
+        ownerTable_ = new ArrayList<>();
+        ownerIndexes_ = new HashMap<>();
+        permissionTable_ = new ArrayList<>();
+        permissionIndexes_ = new HashMap<>();
+        names_ = new byte[capacity * 16];
+        nameOffsets_ = new int[capacity + 1];
+        ids_ = new int[capacity];
+        types_ = new byte[capacity];
+        sizes_ = new long[capacity];
+        createTimes_ = new long[capacity];
+        modifyTimes_ = new long[capacity];
+        owners_ = new int[capacity];
+        permissions_ = new int[capacity];
+    }
+
+    int size()
+    {
+        return size_;
+    }
+
+    void add(CollectionAndDataObjectListingEntry _entry) throws IOException
+    {
+        // Collections are listed by their absolute path.
+        String name = _entry.getPathOrName();
+
+        if (ObjectType.DATA_OBJECT != _entry.getObjectType())
+        {
+            name = name.substring(name.lastIndexOf('/') + 1);
+        }
+
+        // @formatter:off
+        append(name.getBytes(StandardCharsets.UTF_8),
+               _entry.getId(),
+               (byte) _entry.getObjectType().ordinal(),
+               _entry.getDataSize(),
+               toMillis(_entry.getCreatedAt()),
+               toMillis(_entry.getModifiedAt()),
+               indexOfOwner(_entry.getOwnerName()),
+               indexOfPermissions(_entry.getUserFilePermission()));
+        // @formatter:on
+    }
+
+    // Adds an entry of another listing of the same collection.
+    void add(Entry _entry) throws IOException
+    {
+        // @formatter:off
+        append(_entry.getName().getBytes(StandardCharsets.UTF_8),
+               _entry.getId(),
+               (byte) _entry.getObjectType().ordinal(),
+               _entry.getDataSize(),
+               _entry.getCreateTime(),
+               _entry.getModifyTime(),
+               indexOfOwner(_entry.getOwnerName()),
+               indexOfPermissions(_entry.getUserFilePermission()));
+        // @formatter:on
+    }
+
+    Entry get(int _index) throws IOException
+    {
+        if (null != spill_)
+        {
+            return spill_.read(_index, this);
+        }
+
+        final int start = nameOffsets_[_index];
+        final String name = new String(names_, start, nameOffsets_[_index + 1] - start, StandardCharsets.UTF_8);
+
+        // @formatter:off
+        return new Entry(collection_,
+                         name,
+                         ids_[_index],
+                         OBJECT_TYPES[types_[_index]],
+                         sizes_[_index],
+                         createTimes_[_index],
+                         modifyTimes_[_index],
+                         ownerTable_.get(owners_[_index]),
+                         permissionTable_.get(permissions_[_index]));
+        // @formatter:on
+    }
+
+    boolean isSpilled()
+    {
+        return null != spill_;
+    }
+
+    // Closes the spill files. A spilled listing cannot be read afterwards.
+    void close()
+    {
+        if (null != cleanable_)
+        {
+            cleanable_.clean();
+        }
+    }
+
+    private void append(byte[] _name,
+                        int _id,
+                        byte _type,
+                        long _size,
+                        long _createTime,
+                        long _modifyTime,
+                        int _owner,
+                        int _perms)
+        throws IOException
+    {
+        if (null == spill_ && null != spillDirectory_ && size_ == spillThreshold_)
+        {
+            try
+            {
+                spill();
+            }
+            catch (IOException e)
+            {
+                // The listing stays on the heap.
+                log_.warn("append - Could not move the listing of [{}] to disk: {}", collection_, e.getMessage());
+            }
+        }
+
+        if (null != spill_)
+        {
+            spill_.append(_name, _id, _type, _size, _createTime, _modifyTime, _owner, _perms);
+            ++size_;
+            return;
+        }
+
+        if (size_ == ids_.length)
+        {
+            grow();
+        }
+
+        if (namesLength_ + _name.length > names_.length)
+        {
+            names_ = Arrays.copyOf(names_, Math.max(names_.length * 2, namesLength_ + _name.length));
+        }
+
+        System.arraycopy(_name, 0, names_, namesLength_, _name.length);
+        namesLength_ += _name.length;
+        nameOffsets_[size_ + 1] = namesLength_;
+
+        ids_[size_] = _id;
+        types_[size_] = _type;
+        sizes_[size_] = _size;
+        createTimes_[size_] = _createTime;
+        modifyTimes_[size_] = _modifyTime;
+        owners_[size_] = _owner;
+        permissions_[size_] = _perms;
+
+        ++size_;
+    }
+
+    // Moves the entries to the spill files and releases the arrays.
+    private void spill() throws IOException
+    {
+        Spill spill = new Spill(spillDirectory_);
+
+        try
+        {
+            for (int i = 0; i < size_; ++i)
+            {
+                final int start = nameOffsets_[i];
+                byte[] name = Arrays.copyOfRange(names_, start, nameOffsets_[i + 1]);
+
+                // @formatter:off
+                spill.append(name,
+                             ids_[i],
+                             types_[i],
+                             sizes_[i],
+                             createTimes_[i],
+                             modifyTimes_[i],
+                             owners_[i],
+                             permissions_[i]);
+                // @formatter:on
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            spill.run();
+            throw e;
+        }
+
+        spill_ = spill;
+        cleanable_ = CLEANER.register(this, spill);
+
+        names_ = null;
+        nameOffsets_ = null;
+        ids_ = null;
+        types_ = null;
+        sizes_ = null;
+        createTimes_ = null;
+        modifyTimes_ = null;
+        owners_ = null;
+        permissions_ = null;
+
+        log_.debug("spill - Moved [{}] entries of [{}] to disk.", size_, collection_);
+    }
+
+    private void grow()
+    {
+        final int capacity = ids_.length * 2;
+
+        nameOffsets_ = Arrays.copyOf(nameOffsets_, capacity + 1);
+        ids_ = Arrays.copyOf(ids_, capacity);
+        types_ = Arrays.copyOf(types_, capacity);
+        sizes_ = Arrays.copyOf(sizes_, capacity);
+        createTimes_ = Arrays.copyOf(createTimes_, capacity);
+        modifyTimes_ = Arrays.copyOf(modifyTimes_, capacity);
+        owners_ = Arrays.copyOf(owners_, capacity);
+        permissions_ = Arrays.copyOf(permissions_, capacity);
+    }
+
+    private int indexOfOwner(String _owner)
+    {
+        return ownerIndexes_.computeIfAbsent(String.valueOf(_owner), k -> {
+            ownerTable_.add(k);
+            return ownerTable_.size() - 1;
+        });
+    }
+
+    private int indexOfPermissions(List<UserFilePermission> _perms)
+    {
+        StringBuilder key = new StringBuilder();
+
+        for (UserFilePermission p : _perms)
+        {
+            // @formatter:off
+            key.append(p.getUserName()).append('#')
+               .append(p.getUserZone()).append('#')
+               .append(p.getUserId()).append('#')
+               .append(p.getUserType()).append('#')
+               .append(p.getFilePermissionEnum()).append(';');
+            // @formatter:on
+        }
+
+        return permissionIndexes_.computeIfAbsent(key.toString(), k -> {
+            permissionTable_.add(List.copyOf(_perms));
+            return permissionTable_.size() - 1;
+        });
+    }
+
+    private static long toMillis(java.util.Date _date)
+    {
+        return (null != _date) ? _date.getTime() : 0;
+    }
+
+    // The spill files of a listing. Closing them (run()) must not require the listing,
+    // which is why this class does not refer to it.
+    private static final class Spill implements Runnable
+    {
+        private final FileChannel records_;
+        private final FileChannel names_;
+        private final ByteBuffer recordBuffer_;
+        private final ByteBuffer nameBuffer_;
+        private final ByteBuffer readBuffer_;
+        private long flushedRecordsLength_;
+        private long flushedNamesLength_;
+        private long namesLength_;
+
+        Spill(Path _directory) throws IOException
+        {
+            records_ = open(_directory, ".records");
+
+            try
+            {
+                names_ = open(_directory, ".names");
+            }
+            catch (IOException e)
+            {
+                records_.close();
+                throw e;
+            }
+
+            recordBuffer_ = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            nameBuffer_ = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            readBuffer_ = ByteBuffer.allocateDirect(RECORD_SIZE);
+        }
+
+        void append(byte[] _name,
+                    int _id,
+                    byte _type,
+                    long _size,
+                    long _createTime,
+                    long _modifyTime,
+                    int _owner,
+                    int _perms)
+            throws IOException
+        {
+            if (recordBuffer_.remaining() < RECORD_SIZE)
+            {
+                flushRecords();
+            }
+
+            recordBuffer_.putLong(namesLength_)
+                         .putInt(_name.length)
+                         .putInt(_id)
+                         .put(_type)
+                         .putLong(_size)
+                         .putLong(_createTime)
+                         .putLong(_modifyTime)
+                         .putInt(_owner)
+                         .putInt(_perms);
+
+            if (nameBuffer_.remaining() < _name.length)
+            {
+                flushNames();
+            }
+
+            if (nameBuffer_.remaining() < _name.length)
+            {
+                writeFully(names_, ByteBuffer.wrap(_name), flushedNamesLength_);
+                flushedNamesLength_ += _name.length;
+            }
+            else
+            {
+                nameBuffer_.put(_name);
+            }
+
+            namesLength_ += _name.length;
+        }
+
+        Entry read(int _index, CompactListing _listing) throws IOException
+        {
+            final long position = (long) _index * RECORD_SIZE;
+
+            if (position >= flushedRecordsLength_)
+            {
+                flushRecords();
+            }
+
+            readBuffer_.clear();
+            readFully(records_, readBuffer_, position);
+            readBuffer_.flip();
+
+            final long nameOffset = readBuffer_.getLong();
+            ByteBuffer name = ByteBuffer.allocate(readBuffer_.getInt());
+
+            if (nameOffset + name.capacity() > flushedNamesLength_)
+            {
+                flushNames();
+            }
+
+            readFully(names_, name, nameOffset);
+
+            // @formatter:off
+            return new Entry(_listing.collection_,
+                             new String(name.array(), StandardCharsets.UTF_8),
+                             readBuffer_.getInt(),
+                             OBJECT_TYPES[readBuffer_.get()],
+                             readBuffer_.getLong(),
+                             readBuffer_.getLong(),
+                             readBuffer_.getLong(),
+                             _listing.ownerTable_.get(readBuffer_.getInt()),
+                             _listing.permissionTable_.get(readBuffer_.getInt()));
+            // @formatter:on
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                records_.close();
+                names_.close();
+            }
+            catch (IOException e)
+            {
+                log_.warn("close - Could not close a listing spill file: {}", e.getMessage());
+            }
+        }
+
+        private void flushRecords() throws IOException
+        {
+            recordBuffer_.flip();
+            flushedRecordsLength_ += writeFully(records_, recordBuffer_, flushedRecordsLength_);
+            recordBuffer_.clear();
+        }
+
+        private void flushNames() throws IOException
+        {
+            nameBuffer_.flip();
+            flushedNamesLength_ += writeFully(names_, nameBuffer_, flushedNamesLength_);
+            nameBuffer_.clear();
+        }
+
+        private static FileChannel open(Path _directory, String _suffix) throws IOException
+        {
+            Files.createDirectories(_directory);
+
+            Path path = Files.createTempFile(_directory, "listing-", _suffix);
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            Files.delete(path);
+
+            return channel;
+        }
+
+        private static int writeFully(FileChannel _channel, ByteBuffer _buffer, long _position) throws IOException
+        {
+            final int length = _buffer.remaining();
+
+            while (_buffer.hasRemaining())
+            {
+                _channel.write(_buffer, _position + length - _buffer.remaining());
+            }
+
+            return length;
+        }
+
+        private static void readFully(FileChannel _channel, ByteBuffer _buffer, long _position) throws IOException
+        {
+            final int length = _buffer.remaining();
+
+            while (_buffer.hasRemaining())
+            {
+                if (_channel.read(_buffer, _position + length - _buffer.remaining()) < 0)
+                {
+                    throw new IOException("Listing spill file is truncated");
+                }
+            }
+        }
+    }
+
+    // A single entry of the listing. The permission list is shared with other entries
+    // and must not be modified.
+    static final class Entry
+    {
+        private final String collection_;
+        private final String name_;
+        private final int id_;
+        private final ObjectType objectType_;
+        private final long dataSize_;
+        private final long createTime_;
+        private final long modifyTime_;
+        private final String ownerName_;
+        private final List<UserFilePermission> perms_;
+
+        private Entry(String _collection,
+                      String _name,
+                      int _id,
+                      ObjectType _objectType,
+                      long _dataSize,
+                      long _createTime,
+                      long _modifyTime,
+                      String _ownerName,
+                      List<UserFilePermission> _perms)
+        {
+            collection_ = _collection;
+            name_ = _name;
+            id_ = _id;
+            objectType_ = _objectType;
+            dataSize_ = _dataSize;
+            createTime_ = _createTime;
+            modifyTime_ = _modifyTime;
+            ownerName_ = _ownerName;
+            perms_ = _perms;
+        }
+
+        String getName()
+        {
+            return name_;
+        }
+
+        // Returns the absolute path of a collection or the name of a data object
+        // (the same as Jargon's listing entries).
+        String getPathOrName()
+        {
+            if (ObjectType.DATA_OBJECT == objectType_)
+            {
+                return name_;
+            }
+
+            return collection_.endsWith("/") ? collection_ + name_ : collection_ + "/" + name_;
+        }
+
+        int getId()
+        {
+            return id_;
+        }
+
+        ObjectType getObjectType()
+        {
+            return objectType_;
+        }
+
+        long getDataSize()
+        {
+            return dataSize_;
+        }
+
+        long getCreateTime()
+        {
+            return createTime_;
+        }
+
+        long getModifyTime()
+        {
+            return modifyTime_;
+        }
+
+        String getOwnerName()
+        {
+            return ownerName_;
+        }
+
+        List<UserFilePermission> getUserFilePermission()
+        {
+            return perms_;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.irods.nfsrods.vfs;
+
+import org.irods.jargon.core.connection.IRODSAccount;
+
+// Notified after data has been written to a data object outside of an NFS request
+// (e.g. buffered writes being flushed) so that information cached about the data
+// object can be dropped. May be called from any thread.
+interface DataObjectChangeListener
+{
+    void changed(long _inodeNumber, IRODSAccount _acct, String _path);
+}
@@ -0,0 +1,473 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+
+// A snapshot of the contents of a collection, shared by every user. The listing is
+// fetched with the proxy administrator's account and holds every entry along with all
+// of its permission rows. What each user sees is a DirectoryView over it. Entries are
+// fetched from iRODS one GenQuery page at a time, only as far as READDIR has progressed,
+// and keep their position for the lifetime of the snapshot. A client paging through a
+// large collection therefore costs one page per READDIR instead of a full listing.
+//
+// Collections are listed before data objects. When an executor is given, the two series
+// are fetched at the same time on separate connections, and once the page size is known,
+// the next few pages of each series are requested ahead of time (GenQuery pages are
+// addressed by offset, so they do not depend on each other). Pages are merged in the
+// same order as a sequential listing would return them.
+//
+// When a ListingSpecificQuery is given, collections and data objects come back together
+// from a single query, and only the first series is used.
+//
+// Entries are kept in a CompactListing rather than as Jargon objects, so a snapshot of a
+// large collection costs a fraction of the heap it otherwise would, and one larger than
+// the spill threshold is moved to local disk.
+//
+// A snapshot is shared by the listing cache and every view taken of it, each of which
+// holds a reference. The spill files are closed when the last reference is released.
+class DirectoryListing
+{
+    private static final Logger log_ = LogManager.getLogger(DirectoryListing.class);
+
+    // The number of pages of each series that may be in flight at the same time.
+    private static final int PAGES_IN_FLIGHT = 4;
+
+    private final IRODSAccessObjectFactory factory_;
+    private final IRODSAccount acct_;
+    private final String path_;
+    private final Date collectionLastModified_;
+    private final boolean usingOracleDB_;
+    private final ExecutorService executor_;
+    private final Path spillDirectory_;
+    private final int spillThreshold_;
+    private final Metrics metrics_;
+    private final CompactListing entries_;
+    private final Series collections_;
+    private final Series dataObjects_;
+    private ListingSpecificQuery specificQuery_;
+    private int collectionCount_;
+    private int dataObjectCount_;
+    private volatile long lastValidatedTime_;
+    private volatile boolean stale_;
+    private volatile long version_;
+    private int references_;
+
+    DirectoryListing(IRODSAccessObjectFactory _factory,
+                     IRODSAccount _acct,
+                     String _path,
+                     Date _collectionLastModified,
+                     boolean _usingOracleDB,
+                     ExecutorService _executor,
+                     Path _spillDirectory,
+                     int _spillThreshold,
+                     ListingSpecificQuery _specificQuery,
+                     Metrics _metrics)
+    {
+        factory_ = _factory;
+        acct_ = _acct;
+        path_ = _path;
+        collectionLastModified_ = _collectionLastModified;
+        usingOracleDB_ = _usingOracleDB;
+        executor_ = _executor;
+        spillDirectory_ = _spillDirectory;
+        spillThreshold_ = _spillThreshold;
+        metrics_ = _metrics;
+        entries_ = new CompactListing(_path, _spillDirectory, _spillThreshold);
+        collections_ = new Series(true);
+        dataObjects_ = new Series(false);
+        specificQuery_ = _specificQuery;
+        dataObjects_.complete_ = (null != specificQuery_);
+        lastValidatedTime_ = System.currentTimeMillis();
+        references_ = 1;
+    }
+
+    String getPath()
+    {
+        return path_;
+    }
+
+    Date getCollectionLastModified()
+    {
+        return collectionLastModified_;
+    }
+
+    // See ListingVersions.
+    long getVersion()
+    {
+        return version_;
+    }
+
+    void setVersion(long _version)
+    {
+        version_ = _version;
+    }
+
+    // Returns the last time the collection was confirmed not to have changed since the
+    // snapshot was taken.
+    long getLastValidatedTime()
+    {
+        return lastValidatedTime_;
+    }
+
+    void markValidated()
+    {
+        lastValidatedTime_ = System.currentTimeMillis();
+    }
+
+    // Marks the listing as out of date. Used when NFSRODS changes the collection, since
+    // the change may not move the collection's mtime (iRODS timestamps are in seconds).
+    // A stale listing is never served. It only serves as the base of a refresh.
+    void markStale()
+    {
+        stale_ = true;
+    }
+
+    boolean isStale()
+    {
+        return stale_;
+    }
+
+    // Takes a reference to the listing. Returns false if the listing has been closed
+    // (its last reference was released), in which case it must not be used.
+    synchronized boolean retain()
+    {
+        if (0 == references_)
+        {
+            return false;
+        }
+
+        ++references_;
+
+        return true;
+    }
+
+    // Releases a reference. The listing is closed along with the last one. A new listing
+    // starts with one reference, owned by whoever created it.
+    synchronized void release()
+    {
+        if (references_ > 0 && 0 == --references_)
+        {
+            log_.debug("release - Closing listing of [{}].", path_);
+            entries_.close();
+        }
+    }
+
+    // Returns the entry at the position, or null if the collection has fewer entries.
+    // Pages are fetched from iRODS until the position is reached.
+    synchronized CompactListing.Entry get(long _index) throws JargonException
+    {
+        while (_index >= entries_.size() && !isComplete())
+        {
+            fetchNextPage();
+        }
+
+        if (_index >= entries_.size())
+        {
+            return null;
+        }
+
+        try
+        {
+            return entries_.get((int) _index);
+        }
+        catch (IOException e)
+        {
+            throw new JargonException(e);
+        }
+    }
+
+    // Returns the number of entries fetched so far.
+    synchronized int size()
+    {
+        return entries_.size();
+    }
+
+    // Returns true if every entry of the collection has been fetched.
+    synchronized boolean isComplete()
+    {
+        return collections_.complete_ && dataObjects_.complete_;
+    }
+
+    synchronized int getCollectionCount()
+    {
+        return collectionCount_;
+    }
+
+    synchronized int getDataObjectCount()
+    {
+        return dataObjectCount_;
+    }
+
+    // Returns a complete listing holding the entries of this one, with each entry whose
+    // id is in _changes replaced by the changed entry. Changed entries this listing does
+    // not hold are added at the end. This listing must be complete.
+    synchronized DirectoryListing withChanges(Date _collectionLastModified,
+                                              Map<Integer, CollectionAndDataObjectListingEntry> _changes)
+        throws JargonException
+    {
+        // @formatter:off
+        DirectoryListing listing = new DirectoryListing(factory_,
+                                                        acct_,
+                                                        path_,
+                                                        _collectionLastModified,
+                                                        usingOracleDB_,
+                                                        executor_,
+                                                        spillDirectory_,
+                                                        spillThreshold_,
+                                                        null,
+                                                        metrics_);
+        // @formatter:on
+
+        Map<Integer, CollectionAndDataObjectListingEntry> added = new LinkedHashMap<>(_changes);
+
+        try
+        {
+            for (int i = 0; i < entries_.size(); ++i)
+            {
+                CompactListing.Entry e = entries_.get(i);
+                CollectionAndDataObjectListingEntry changed = added.remove(e.getId());
+
+                if (null != changed)
+                {
+                    listing.entries_.add(changed);
+                }
+                else
+                {
+                    listing.entries_.add(e);
+                }
+
+                listing.countEntry(e.getObjectType());
+            }
+
+            for (CollectionAndDataObjectListingEntry e : added.values())
+            {
+                listing.entries_.add(e);
+                listing.countEntry(e.getObjectType());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new JargonException(e);
+        }
+
+        listing.collections_.complete_ = true;
+        listing.dataObjects_.complete_ = true;
+
+        return listing;
+    }
+
+    private void countEntry(ObjectType _objectType)
+    {
+        if (ObjectType.DATA_OBJECT == _objectType)
+        {
+            ++dataObjectCount_;
+        }
+        else
+        {
+            ++collectionCount_;
+        }
+    }
+
+    private void fetchNextPage() throws JargonException
+    {
+        Series series = collections_.complete_ ? dataObjects_ : collections_;
+
+        requestPages(series);
+
+        if (null != executor_)
+        {
+            // Keep the data objects coming while the collections are consumed.
+            requestPages(dataObjects_);
+        }
+
+        List<CollectionAndDataObjectListingEntry> page;
+
+        try
+        {
+            page = join(series);
+        }
+        catch (JargonException e)
+        {
+            if (null == specificQuery_ || entries_.size() > 0)
+            {
+                throw e;
+            }
+
+            // Nothing was listed yet, so the listing starts over with Jargon's calls.
+            specificQuery_.disable(e);
+            specificQuery_ = null;
+            dataObjects_.complete_ = false;
+            return;
+        }
+
+        if (isLastPage(page))
+        {
+            // Pages requested past the end come back empty.
+            series.complete_ = true;
+            series.pages_.clear();
+        }
+        else if (0 == series.pageSize_)
+        {
+            series.pageSize_ = page.size();
+        }
+        else if (page.size() != series.pageSize_)
+        {
+            // The pages requested ahead of time assumed the wrong offsets.
+            series.pages_.clear();
+        }
+
+        series.count_ += page.size();
+        final boolean spilled = entries_.isSpilled();
+
+        try
+        {
+            for (CollectionAndDataObjectListingEntry e : page)
+            {
+                entries_.add(e);
+                countEntry(e.getObjectType());
+            }
+        }
+        catch (IOException e)
+        {
+            throw new JargonException(e);
+        }
+
+        if (!spilled && entries_.isSpilled())
+        {
+            metrics_.increment("listing.spilled");
+        }
+
+        log_.debug("fetchNextPage - Fetched [{}] entries of [{}] (total = {}).", page.size(), path_, entries_.size());
+    }
+
+    // Requests the next pages of the series. Until the size of a page is known (i.e. the
+    // first page has arrived), only one page can be requested.
+    private void requestPages(Series _series)
+    {
+        if (_series.complete_)
+        {
+            return;
+        }
+
+        final int maxPages = (null == executor_) ? 1 : PAGES_IN_FLIGHT;
+
+        while (_series.pages_.size() < maxPages && (_series.pages_.isEmpty() || _series.pageSize_ > 0))
+        {
+            final int offset = _series.pages_.isEmpty() ? _series.count_ : _series.nextOffset_;
+
+            if (null == executor_)
+            {
+                try
+                {
+                    _series.pages_.add(CompletableFuture.completedFuture(fetchPage(_series.collections_, offset)));
+                }
+                catch (JargonException e)
+                {
+                    _series.pages_.add(CompletableFuture.failedFuture(e));
+                }
+            }
+            else
+            {
+                _series.pages_.add(CompletableFuture.supplyAsync(() -> fetchPageOnPooledConnection(_series.collections_, offset), executor_));
+            }
+
+            _series.nextOffset_ = offset + _series.pageSize_;
+        }
+    }
+
+    private List<CollectionAndDataObjectListingEntry> fetchPage(boolean _collections, int _offset) throws JargonException
+    {
+        metrics_.increment("listing.pages_fetched");
+
+        if (null != specificQuery_)
+        {
+            return specificQuery_.fetchPage(acct_, path_, _offset);
+        }
+
+        CollectionAndDataObjectListAndSearchAO lao = factory_.getCollectionAndDataObjectListAndSearchAO(acct_);
+
+        if (_collections)
+        {
+            return lao.listCollectionsUnderPathWithPermissions(path_, _offset, usingOracleDB_);
+        }
+
+        return lao.listDataObjectsUnderPathWithPermissions(path_, _offset, usingOracleDB_);
+    }
+
+    private List<CollectionAndDataObjectListingEntry> fetchPageOnPooledConnection(boolean _collections, int _offset)
+    {
+        try
+        {
+            return fetchPage(_collections, _offset);
+        }
+        catch (JargonException e)
+        {
+            throw new CompletionException(e);
+        }
+        finally
+        {
+            factory_.closeSessionAndEatExceptions();
+        }
+    }
+
+    // Waits for the next page of the series.
+    private List<CollectionAndDataObjectListingEntry> join(Series _series) throws JargonException
+    {
+        try
+        {
+            return _series.pages_.poll().join();
+        }
+        catch (CompletionException e)
+        {
+            // The failed page (and the ones after it) are requested again by the next call.
+            _series.pages_.clear();
+
+            if (e.getCause() instanceof JargonException je)
+            {
+                throw je;
+            }
+
+            throw new JargonException(e.getCause());
+        }
+    }
+
+    private static boolean isLastPage(List<CollectionAndDataObjectListingEntry> _page)
+    {
+        return _page.isEmpty() || _page.get(_page.size() - 1).isLastResult();
+    }
+
+    // The pages of one of the two GenQuery series (collections or data objects).
+    private static final class Series
+    {
+        private final boolean collections_;
+        private final Deque<CompletableFuture<List<CollectionAndDataObjectListingEntry>>> pages_;
+        private int pageSize_;
+        private int nextOffset_;
+        private int count_;
+        private boolean complete_;
+
+        Series(boolean _collections)
+        {
+            collections_ = _collections;
+            pages_ = new ArrayDeque<>();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.CollectionAndDataObjectListAndSearchAO;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+import org.irods.jargon.core.query.GenQueryBuilderException;
+import org.irods.jargon.core.query.IRODSGenQueryBuilder;
+import org.irods.jargon.core.query.IRODSGenQueryFromBuilder;
+import org.irods.jargon.core.query.IRODSQueryResultRow;
+import org.irods.jargon.core.query.IRODSQueryResultSet;
+import org.irods.jargon.core.query.JargonQueryException;
+import org.irods.jargon.core.query.QueryConditionOperators;
+import org.irods.jargon.core.query.RodsGenQueryEnum;
+
+// Brings a cached DirectoryListing up to date without listing the collection again.
+// Only the entries modified since the listing's collection mtime are fetched (along
+// with their permissions), and they replace or are added to the cached entries.
+//
+// Removals do not show up in such a query. They are detected by comparing the number
+// of collections and data objects in the collection with the number in the refreshed
+// listing. On a mismatch, or when too many entries changed, the caller lists the
+// collection again. Renamed and moved objects are fetched like any other change, since
+// iRODS updates their mtime. A removal offset by an entry added with an older mtime
+// (e.g. a registered file) goes unnoticed until the collection changes again.
+class DirectoryListingDelta
+{
+    private static final Logger log_ = LogManager.getLogger(DirectoryListingDelta.class);
+
+    // Beyond this many result rows, listing the collection again costs about the same.
+    private static final int MAX_ROWS = 5000;
+    private static final int ROWS_PER_PAGE = 500;
+
+    private final IRODSAccessObjectFactory factory_;
+    private final IRODSAccount adminAcct_;
+    private final Metrics metrics_;
+
+    DirectoryListingDelta(IRODSAccessObjectFactory _factory, IRODSAccount _adminAcct, Metrics _metrics)
+    {
+        factory_ = _factory;
+        adminAcct_ = _adminAcct;
+        metrics_ = _metrics;
+    }
+
+    // Returns the refreshed listing, or null if the collection must be listed again.
+    DirectoryListing refresh(DirectoryListing _listing, Date _collectionLastModified) throws JargonException
+    {
+        if (!_listing.isComplete())
+        {
+            return null;
+        }
+
+        final String path = _listing.getPath();
+
+        // Counted before the changes are fetched, so that an entry added in between
+        // causes a mismatch rather than going unnoticed.
+        CollectionAndDataObjectListAndSearchAO lao = factory_.getCollectionAndDataObjectListAndSearchAO(adminAcct_);
+        final int collectionCount = lao.countCollectionsUnderPath(path);
+        final int dataObjectCount = lao.countDataObjectsUnderPath(path);
+
+        // iRODS timestamps are in seconds. Entries modified within the same second as
+        // the collection are fetched as well.
+        final String since = toTimestamp(_listing.getCollectionLastModified());
+        Map<Integer, CollectionAndDataObjectListingEntry> changes = new LinkedHashMap<>();
+
+        try
+        {
+            if (!fetchChanges(path, since, true, changes) || !fetchChanges(path, since, false, changes))
+            {
+                log_.debug("refresh - Too many changes in [{}].", path);
+                metrics_.increment("listing.delta_fallbacks");
+                return null;
+            }
+        }
+        catch (GenQueryBuilderException | JargonQueryException e)
+        {
+            throw new JargonException(e);
+        }
+
+        DirectoryListing listing = _listing.withChanges(_collectionLastModified, changes);
+
+        if (listing.getCollectionCount() != collectionCount || listing.getDataObjectCount() != dataObjectCount)
+        {
+            log_.debug("refresh - Entries were removed from [{}].", path);
+            metrics_.increment("listing.delta_fallbacks");
+            listing.release();
+            return null;
+        }
+
+        log_.debug("refresh - Applied [{}] changes to the listing of [{}].", changes.size(), path);
+        metrics_.increment("listing.delta_refreshes");
+
+        return listing;
+    }
+
+    // Adds the entries modified since the timestamp to _changes. Returns false if there
+    // are too many of them.
+    private boolean fetchChanges(String _path,
+                                 String _since,
+                                 boolean _collections,
+                                 Map<Integer, CollectionAndDataObjectListingEntry> _changes)
+        throws GenQueryBuilderException, JargonException, JargonQueryException
+    {
+        IRODSGenQueryBuilder builder = new IRODSGenQueryBuilder(true, null);
+
+        if (_collections)
+        {
+            builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_ID)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_NAME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_OWNER_NAME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_CREATE_TIME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_MODIFY_TIME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_COLL_ACCESS_TYPE)
+                   .addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_PARENT_NAME, QueryConditionOperators.EQUAL, _path)
+                   .addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_MODIFY_TIME, QueryConditionOperators.GREATER_THAN_OR_EQUAL_TO, _since);
+        }
+        else
+        {
+            builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_D_DATA_ID)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_NAME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_D_OWNER_NAME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_D_CREATE_TIME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_D_MODIFY_TIME)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_ACCESS_TYPE)
+                   .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_DATA_SIZE)
+                   .addConditionAsGenQueryField(RodsGenQueryEnum.COL_COLL_NAME, QueryConditionOperators.EQUAL, _path)
+                   .addConditionAsGenQueryField(RodsGenQueryEnum.COL_D_MODIFY_TIME, QueryConditionOperators.GREATER_THAN_OR_EQUAL_TO, _since);
+        }
+
+        // The user columns are those of the permission rows.
+        builder.addSelectAsGenQueryValue(RodsGenQueryEnum.COL_USER_NAME)
+               .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_USER_ID)
+               .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_USER_ZONE)
+               .addSelectAsGenQueryValue(RodsGenQueryEnum.COL_USER_TYPE);
+
+        IRODSGenQueryExecutor gqe = factory_.getIRODSGenQueryExecutor(adminAcct_);
+        IRODSGenQueryFromBuilder query = builder.exportIRODSQueryFromBuilder(ROWS_PER_PAGE);
+        int rows = 0;
+        IRODSQueryResultSet resultSet;
+
+        do
+        {
+            resultSet = gqe.executeIRODSQueryAndCloseResultInZone(query, rows, adminAcct_.getZone());
+
+            for (IRODSQueryResultRow row : resultSet.getResults())
+            {
+                addRow(row, _collections, _changes);
+            }
+
+            rows += resultSet.getResults().size();
+
+            if (rows > MAX_ROWS)
+            {
+                return false;
+            }
+        }
+        while (resultSet.isHasMoreRecords());
+
+        return true;
+    }
+
+    // Rows repeat the object for each of its permissions (and, for data objects, each
+    // of its replicas).
+    private static void addRow(IRODSQueryResultRow _row,
+                               boolean _collections,
+                               Map<Integer, CollectionAndDataObjectListingEntry> _changes)
+        throws JargonException
+    {
+        final int id = Integer.parseInt(_row.getColumn(0));
+        CollectionAndDataObjectListingEntry entry = _changes.get(id);
+
+        if (null == entry)
+        {
+            entry = new CollectionAndDataObjectListingEntry();
+            entry.setId(id);
+            entry.setObjectType(_collections ? ObjectType.COLLECTION : ObjectType.DATA_OBJECT);
+            entry.setPathOrName(_row.getColumn(1));
+            entry.setOwnerName(_row.getColumn(2));
+            entry.setCreatedAt(toDate(_row.getColumn(3)));
+            entry.setModifiedAt(toDate(_row.getColumn(4)));
+            entry.setUserFilePermission(new ArrayList<>());
+
+            if (!_collections)
+            {
+                entry.setDataSize(Long.parseLong(_row.getColumn(6)));
+            }
+
+            _changes.put(id, entry);
+        }
+
+        final int users = _collections ? 6 : 7;
+        final String userName = _row.getColumn(users);
+        List<UserFilePermission> perms = entry.getUserFilePermission();
+
+        for (UserFilePermission p : perms)
+        {
+            if (p.getUserName().equals(userName))
+            {
+                return;
+            }
+        }
+
+        // @formatter:off
+        perms.add(new UserFilePermission(userName,
+                                         _row.getColumn(users + 1),
+                                         FilePermissionEnum.valueOf(Integer.parseInt(_row.getColumn(5))),
+                                         UserTypeEnum.findTypeByString(_row.getColumn(users + 3)),
+                                         _row.getColumn(users + 2)));
+        // @formatter:on
+    }
+
+    private static String toTimestamp(Date _date)
+    {
+        return String.format("%011d", _date.getTime() / 1000);
+    }
+
+    private static Date toDate(String _timestamp)
+    {
+        return new Date(Long.parseLong(_timestamp.trim()) * 1000);
+    }
+}
@@ -0,0 +1,155 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+
+import com.google.common.primitives.Longs;
+
+// One user's view of a shared DirectoryListing. When the zone enforces a STRICT
+// acAclPolicy, the view holds the positions of the entries the user is allowed to see,
+// i.e. entries the user (or one of the user's groups) has a permission on, which is what
+// iRODS would have returned to the user. Otherwise (and for administrators), the user
+// sees every entry, so the view reads the listing directly instead of holding a position
+// per entry (a view of a spilled listing would otherwise cost as much heap as the
+// listing saved). Positions are filled in as READDIR progresses and
+// never change, so the entry at position "i" of a view is always the same entry.
+//
+// A view holds a reference to its listing, released along with the view's last reference.
+//
+// The version of the listing is handed to the client as the READDIR cookie verifier.
+// It only changes when the collection may have changed (see ListingVersions), so a
+// client may keep its cached listing for as long as the verifier stays the same.
+class DirectoryView
+{
+    private final DirectoryListing listing_;
+    private final Set<String> principals_; // Null if the user can see every entry.
+    private final long generation_;
+    private int[] positions_;
+    private int size_;
+    private long nextPosition_;
+    private boolean complete_;
+    private int references_;
+
+    // _principals holds the names of the user and the user's groups, or is null
+    // if the user sees every entry. The view takes over a reference to the listing
+    // and starts with one reference of its own, owned by whoever created it.
+    DirectoryView(DirectoryListing _listing, Set<String> _principals)
+    {
+        listing_ = _listing;
+        principals_ = (null != _principals) ? new HashSet<>(_principals) : null;
+        generation_ = _listing.getVersion();
+        positions_ = (null != _principals) ? new int[64] : null;
+        references_ = 1;
+    }
+
+    static long toGeneration(byte[] _verifier)
+    {
+        return Longs.fromByteArray(_verifier);
+    }
+
+    // Takes a reference to the view. Returns false if the view has been released,
+    // in which case it must not be used.
+    synchronized boolean retain()
+    {
+        if (0 == references_)
+        {
+            return false;
+        }
+
+        ++references_;
+
+        return true;
+    }
+
+    synchronized void release()
+    {
+        if (references_ > 0 && 0 == --references_)
+        {
+            listing_.release();
+        }
+    }
+
+    DirectoryListing getListing()
+    {
+        return listing_;
+    }
+
+    long getGeneration()
+    {
+        return generation_;
+    }
+
+    byte[] getVerifier()
+    {
+        return Longs.toByteArray(generation_);
+    }
+
+    // Returns the entry at the position of the view, or null if the user can see fewer
+    // entries.
+    synchronized CompactListing.Entry get(long _index) throws JargonException
+    {
+        if (null == principals_)
+        {
+            return listing_.get(_index);
+        }
+
+        while (_index >= size_ && !complete_)
+        {
+            CompactListing.Entry e = listing_.get(nextPosition_);
+
+            if (null == e)
+            {
+                complete_ = true;
+                break;
+            }
+
+            if (isVisible(e))
+            {
+                if (size_ == positions_.length)
+                {
+                    positions_ = Arrays.copyOf(positions_, size_ * 2);
+                }
+
+                positions_[size_++] = (int) nextPosition_;
+            }
+
+            ++nextPosition_;
+        }
+
+        return (_index < size_) ? listing_.get(positions_[(int) _index]) : null;
+    }
+
+    // Returns the number of entries seen so far. This is the size of the view once
+    // get() has returned null.
+    synchronized int size()
+    {
+        if (null == principals_)
+        {
+            return listing_.size();
+        }
+
+        return size_;
+    }
+
+    private boolean isVisible(CompactListing.Entry _entry)
+    {
+        if (null == principals_)
+        {
+            return true;
+        }
+
+        for (UserFilePermission p : _entry.getUserFilePermission())
+        {
+            if (principals_.contains(p.getUserName()))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
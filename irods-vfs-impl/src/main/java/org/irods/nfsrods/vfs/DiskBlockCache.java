@@ -0,0 +1,509 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// A second cache tier which keeps blocks of data objects in a file on local disk
+// (e.g. NVMe). Blocks are read back through memory-mapped regions of that file.
+//
+// The index is a second memory-mapped file holding one record per block. A record
+// is marked invalid before its block is overwritten and marked valid (along with the
+// block's CRC) once the block has been written. On startup, every valid record is
+// loaded back into memory. The CRC is verified each time a block is read, so blocks
+// torn by a crash are detected and dropped instead of being served.
+//
+// All modifications are made by a single writer thread. Readers never block; they
+// use a per-slot sequence number to detect blocks being replaced while copying.
+class DiskBlockCache
+{
+    private static final Logger log_ = LogManager.getLogger(DiskBlockCache.class);
+
+    private static final int FILE_MAGIC = 0x4E465243; // "NFRC"
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 64;
+    private static final int RECORD_INVALID = 0;
+    private static final int RECORD_VALID = 1;
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final int MAX_PENDING_BLOCKS = 64;
+
+    private record BlockKey(long dataId, long blockIndex) {}
+
+    private final Metrics metrics_;
+    private final int blockSize_;
+    private final int slotCount_;
+    private final int blocksPerSegment_;
+    private final Map<BlockKey, Integer> index_;
+    private final Map<Long, Integer> blockCounts_;
+    private final InvalidationTracker invalidations_;
+    private final AtomicLong pendingBytes_;
+
+    // Written by the writer thread only.
+    private final BlockKey[] keys_;
+    private final BlockCache.Version[] versions_;
+    private final int[] lengths_;
+    private final int[] checksums_;
+    private final AtomicLongArray sequenceNumbers_;
+    private final AtomicIntegerArray referenced_;
+    private final ArrayDeque<Integer> freeSlots_;
+    private int clockHand_;
+
+    private MappedByteBuffer[] segments_;
+    private MappedByteBuffer indexFile_;
+    private ExecutorService writer_;
+
+    DiskBlockCache(String _directory, int _blockSize, long _maxSize, Metrics _metrics)
+    {
+        metrics_ = _metrics;
+        blockSize_ = _blockSize;
+        index_ = new ConcurrentHashMap<>();
+        blockCounts_ = new ConcurrentHashMap<>();
+        invalidations_ = new InvalidationTracker();
+        pendingBytes_ = new AtomicLong();
+        freeSlots_ = new ArrayDeque<>();
+
+        final boolean configured = null != _directory && !_directory.isEmpty() && _blockSize > 0;
+
+        // The index must fit in a single memory-mapped region.
+        final long maxSlots = (Integer.MAX_VALUE - FILE_HEADER_SIZE) / RECORD_SIZE;
+        slotCount_ = configured ? (int) Math.min(maxSlots, _maxSize / _blockSize) : 0;
+        blocksPerSegment_ = (int) Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, _blockSize));
+
+        keys_ = new BlockKey[slotCount_];
+        versions_ = new BlockCache.Version[slotCount_];
+        lengths_ = new int[slotCount_];
+        checksums_ = new int[slotCount_];
+        sequenceNumbers_ = new AtomicLongArray(slotCount_);
+        referenced_ = new AtomicIntegerArray(slotCount_);
+
+        metrics_.gauge("disk_cache.blocks_cached", index_::size);
+        metrics_.gauge("disk_cache.pending_bytes", pendingBytes_::get);
+
+        if (slotCount_ > 0)
+        {
+            open(Path.of(_directory));
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return null != writer_;
+    }
+
+    // Captures the state needed to detect whether the data object was invalidated
+    // while one of its blocks was being fetched. See put().
+    long getInvalidationToken(long _dataId)
+    {
+        return invalidations_.token(_dataId);
+    }
+
+    // Copies the block into the buffer and returns its length, or -1 if the block
+    // is not cached, belongs to another version of the data object, or is corrupt.
+    int read(long _dataId, long _blockIndex, BlockCache.Version _version, byte[] _buffer)
+    {
+        final BlockKey key = new BlockKey(_dataId, _blockIndex);
+        final Integer slot = index_.get(key);
+
+        if (null == slot)
+        {
+            metrics_.increment("disk_cache.misses");
+            return -1;
+        }
+
+        final long sequenceNumber = sequenceNumbers_.get(slot);
+
+        // An odd sequence number means the slot is being written.
+        if ((sequenceNumber & 1) != 0 || !key.equals(keys_[slot]))
+        {
+            metrics_.increment("disk_cache.misses");
+            return -1;
+        }
+
+        if (!_version.equals(versions_[slot]))
+        {
+            metrics_.increment("disk_cache.stale_blocks");
+            submit(() -> evict(slot, key));
+            return -1;
+        }
+
+        final int length = lengths_[slot];
+        final int checksum = checksums_[slot];
+
+        segment(slot).get(offsetInSegment(slot), _buffer, 0, length);
+
+        if (sequenceNumbers_.get(slot) != sequenceNumber)
+        {
+            metrics_.increment("disk_cache.misses");
+            return -1;
+        }
+
+        if (checksum(_buffer, length) != checksum)
+        {
+            log_.warn("read - Checksum mismatch for cached block [{}]. Discarding block.", key);
+            metrics_.increment("disk_cache.corrupt_blocks");
+            submit(() -> evict(slot, key));
+            return -1;
+        }
+
+        referenced_.set(slot, 1);
+        metrics_.increment("disk_cache.hits");
+
+        return length;
+    }
+
+    // Schedules the block to be written to disk. The block is dropped if the
+    // data object is invalidated after the token was taken or if too many blocks
+    // are already waiting to be written.
+    void put(long _dataId, long _blockIndex, BlockCache.Version _version, byte[] _data, int _length, long _token)
+    {
+        if (pendingBytes_.addAndGet(_length) > (long) MAX_PENDING_BLOCKS * blockSize_)
+        {
+            pendingBytes_.addAndGet(-_length);
+            metrics_.increment("disk_cache.writes_dropped");
+            return;
+        }
+
+        final BlockKey key = new BlockKey(_dataId, _blockIndex);
+        final byte[] data = Arrays.copyOf(_data, _length);
+
+        if (!submit(() -> {
+            try
+            {
+                store(key, _version, data, _token);
+            }
+            finally
+            {
+                pendingBytes_.addAndGet(-_length);
+            }
+        }))
+        {
+            pendingBytes_.addAndGet(-_length);
+        }
+    }
+
+    // Drops every block belonging to the data object.
+    void invalidate(long _dataId)
+    {
+        invalidations_.invalidate(_dataId);
+
+        if (!blockCounts_.containsKey(_dataId))
+        {
+            return;
+        }
+
+        // Hide the blocks from readers right away. The slots are released by the writer.
+        index_.keySet().removeIf(key -> key.dataId() == _dataId);
+
+        submit(() -> {
+            if (!blockCounts_.containsKey(_dataId))
+            {
+                return;
+            }
+
+            for (int slot = 0; slot < slotCount_; ++slot)
+            {
+                final BlockKey key = keys_[slot];
+
+                if (null != key && key.dataId() == _dataId)
+                {
+                    evict(slot, key);
+                }
+            }
+        });
+    }
+
+    void close()
+    {
+        if (null == writer_)
+        {
+            return;
+        }
+
+        writer_.shutdown();
+
+        try
+        {
+            if (!writer_.awaitTermination(5, TimeUnit.SECONDS))
+            {
+                writer_.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        for (MappedByteBuffer segment : segments_)
+        {
+            segment.force();
+        }
+
+        indexFile_.force();
+    }
+
+    private void open(Path _directory)
+    {
+        try
+        {
+            Files.createDirectories(_directory);
+
+            final Path indexPath = _directory.resolve("blocks.idx");
+            final Path dataPath = _directory.resolve("blocks.dat");
+            final long indexSize = FILE_HEADER_SIZE + (long) slotCount_ * RECORD_SIZE;
+            final long dataSize = (long) slotCount_ * blockSize_;
+
+            try (FileChannel index = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel data = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                final boolean reusable = index.size() == indexSize && data.size() == dataSize;
+
+                if (!reusable)
+                {
+                    // The layout of the cache changed (or it never existed). Start over.
+                    // The data file is sparse, so disk space is only consumed as blocks are written.
+                    index.truncate(0);
+                    data.truncate(0);
+                    data.write(ByteBuffer.allocate(1), dataSize - 1);
+                }
+
+                indexFile_ = index.map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+
+                final int segmentCount = (int) ((slotCount_ + (long) blocksPerSegment_ - 1) / blocksPerSegment_);
+                segments_ = new MappedByteBuffer[segmentCount];
+
+                for (int i = 0; i < segmentCount; ++i)
+                {
+                    final long offset = (long) i * blocksPerSegment_ * blockSize_;
+                    segments_[i] = data.map(FileChannel.MapMode.READ_WRITE, offset, Math.min(dataSize - offset, (long) blocksPerSegment_ * blockSize_));
+                }
+
+                if (reusable && indexFile_.getInt(0) == FILE_MAGIC && indexFile_.getInt(4) == FILE_FORMAT_VERSION)
+                {
+                    recover();
+                }
+                else
+                {
+                    indexFile_.putInt(0, FILE_MAGIC);
+                    indexFile_.putInt(4, FILE_FORMAT_VERSION);
+                    indexFile_.putInt(8, blockSize_);
+                    indexFile_.putInt(12, slotCount_);
+
+                    for (int slot = 0; slot < slotCount_; ++slot)
+                    {
+                        indexFile_.putInt(recordOffset(slot), RECORD_INVALID);
+                        freeSlots_.add(slot);
+                    }
+                }
+            }
+
+            writer_ = Executors.newSingleThreadExecutor();
+
+            log_.info("open - Disk cache enabled [directory={}, blocks={}, cached_blocks={}].", _directory, slotCount_, index_.size());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log_.error("open - Could not open disk cache under [{}]. Disk cache disabled. {}", _directory, e.getMessage());
+            index_.clear();
+            blockCounts_.clear();
+        }
+    }
+
+    // Rebuilds the in-memory index from the records that were valid when the server stopped.
+    private void recover()
+    {
+        for (int slot = 0; slot < slotCount_; ++slot)
+        {
+            final int offset = recordOffset(slot);
+
+            if (indexFile_.getInt(offset) != RECORD_VALID)
+            {
+                freeSlots_.add(slot);
+                continue;
+            }
+
+            final BlockKey key = new BlockKey(indexFile_.getLong(offset + 4), indexFile_.getLong(offset + 12));
+            final int length = indexFile_.getInt(offset + 36);
+
+            if (length < 0 || length > blockSize_ || null != index_.putIfAbsent(key, slot))
+            {
+                indexFile_.putInt(offset, RECORD_INVALID);
+                freeSlots_.add(slot);
+                continue;
+            }
+
+            keys_[slot] = key;
+            versions_[slot] = new BlockCache.Version(indexFile_.getLong(offset + 20), indexFile_.getLong(offset + 28));
+            lengths_[slot] = length;
+            checksums_[slot] = indexFile_.getInt(offset + 40);
+            blockCounts_.merge(key.dataId(), 1, Integer::sum);
+        }
+
+        log_.info("recover - Recovered [{}] blocks from the disk cache.", index_.size());
+    }
+
+    private void store(BlockKey _key, BlockCache.Version _version, byte[] _data, long _token)
+    {
+        if (!invalidations_.isCurrent(_key.dataId(), _token))
+        {
+            return;
+        }
+
+        final Integer existing = index_.get(_key);
+
+        if (null != existing)
+        {
+            if (_version.equals(versions_[existing]))
+            {
+                return;
+            }
+
+            evict(existing, _key);
+        }
+
+        final int slot = claimSlot();
+        final int offset = recordOffset(slot);
+
+        sequenceNumbers_.incrementAndGet(slot);
+
+        if (null != keys_[slot])
+        {
+            metrics_.increment("disk_cache.evictions");
+            clearSlot(slot);
+        }
+
+        segment(slot).put(offsetInSegment(slot), _data, 0, _data.length);
+
+        keys_[slot] = _key;
+        versions_[slot] = _version;
+        lengths_[slot] = _data.length;
+        checksums_[slot] = checksum(_data, _data.length);
+        referenced_.set(slot, 0);
+
+        indexFile_.putLong(offset + 4, _key.dataId());
+        indexFile_.putLong(offset + 12, _key.blockIndex());
+        indexFile_.putLong(offset + 20, _version.modifyTime());
+        indexFile_.putLong(offset + 28, _version.size());
+        indexFile_.putInt(offset + 36, _data.length);
+        indexFile_.putInt(offset + 40, checksums_[slot]);
+        indexFile_.putInt(offset, RECORD_VALID);
+
+        sequenceNumbers_.incrementAndGet(slot);
+        index_.put(_key, slot);
+        blockCounts_.merge(_key.dataId(), 1, Integer::sum);
+        metrics_.add("disk_cache.bytes_written", _data.length);
+
+        // The data object may have been invalidated while the block was being written.
+        if (!invalidations_.isCurrent(_key.dataId(), _token))
+        {
+            evict(slot, _key);
+        }
+    }
+
+    // Returns a free slot or runs the clock until an unreferenced block is found.
+    private int claimSlot()
+    {
+        final Integer free = freeSlots_.poll();
+
+        if (null != free)
+        {
+            return free;
+        }
+
+        while (true)
+        {
+            final int slot = clockHand_;
+            clockHand_ = (clockHand_ + 1) % slotCount_;
+
+            if (referenced_.compareAndSet(slot, 1, 0))
+            {
+                continue;
+            }
+
+            return slot;
+        }
+    }
+
+    private void evict(int _slot, BlockKey _key)
+    {
+        if (!_key.equals(keys_[_slot]))
+        {
+            return;
+        }
+
+        sequenceNumbers_.incrementAndGet(_slot);
+        clearSlot(_slot);
+        sequenceNumbers_.incrementAndGet(_slot);
+        freeSlots_.add(_slot);
+    }
+
+    private void clearSlot(int _slot)
+    {
+        final BlockKey key = keys_[_slot];
+
+        indexFile_.putInt(recordOffset(_slot), RECORD_INVALID);
+        index_.remove(key, _slot);
+        blockCounts_.computeIfPresent(key.dataId(), (k, n) -> (n > 1) ? n - 1 : null);
+        keys_[_slot] = null;
+        versions_[_slot] = null;
+    }
+
+    private boolean submit(Runnable _task)
+    {
+        if (null == writer_)
+        {
+            return false;
+        }
+
+        try
+        {
+            writer_.execute(_task);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    private MappedByteBuffer segment(int _slot)
+    {
+        return segments_[_slot / blocksPerSegment_];
+    }
+
+    private int offsetInSegment(int _slot)
+    {
+        return (_slot % blocksPerSegment_) * blockSize_;
+    }
+
+    private static int recordOffset(int _slot)
+    {
+        return FILE_HEADER_SIZE + _slot * RECORD_SIZE;
+    }
+
+    private static int checksum(byte[] _data, int _length)
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(_data, 0, _length);
+        return (int) crc.getValue();
+    }
+}
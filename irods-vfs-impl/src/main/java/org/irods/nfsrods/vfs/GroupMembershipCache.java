@@ -0,0 +1,126 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.domain.UserGroup;
+
+// Caches the names of the groups each user is a member of. Permission checks look
+// a user's groups up for every object, so without a cache a single "ls -l" issues
+// one group query per entry.
+//
+// An entry is never served once it is older than the refresh time. Entries that have
+// lived through half of it are refreshed in the background the next time they are
+// read, so users that are active keep hitting the cache.
+class GroupMembershipCache
+{
+    private static final Logger log_ = LogManager.getLogger(GroupMembershipCache.class);
+
+    private record Entry(Set<String> groupNames, long loadTime) {}
+
+    private final IRODSAccessObjectFactory factory_;
+    private final IRODSAccount adminAcct_;
+    private final long refreshTimeInMillis_;
+    private final Metrics metrics_;
+    private final Map<String, Entry> entries_;
+    private final Set<String> refreshing_;
+    private ExecutorService refresher_;
+
+    GroupMembershipCache(IRODSAccessObjectFactory _factory,
+                         IRODSAccount _adminAcct,
+                         int _refreshTimeInMillis,
+                         Metrics _metrics)
+    {
+        factory_ = _factory;
+        adminAcct_ = _adminAcct;
+        refreshTimeInMillis_ = _refreshTimeInMillis;
+        metrics_ = _metrics;
+        entries_ = new ConcurrentHashMap<>();
+        refreshing_ = ConcurrentHashMap.newKeySet();
+
+        metrics_.gauge("group_membership_cache.users", entries_::size);
+
+        if (refreshTimeInMillis_ > 0)
+        {
+            refresher_ = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    // Returns the names of the groups the user is a member of. The set must not be modified.
+    Set<String> getGroupNames(String _userName) throws JargonException
+    {
+        final long now = System.currentTimeMillis();
+        Entry entry = entries_.get(_userName);
+
+        if (null != entry && now - entry.loadTime() < refreshTimeInMillis_)
+        {
+            metrics_.increment("group_membership_cache.hits");
+
+            if (now - entry.loadTime() >= refreshTimeInMillis_ / 2 && refreshing_.add(_userName))
+            {
+                refresher_.execute(() -> refresh(_userName));
+            }
+
+            return entry.groupNames();
+        }
+
+        metrics_.increment("group_membership_cache.misses");
+
+        return load(_userName).groupNames();
+    }
+
+    void close()
+    {
+        if (null != refresher_)
+        {
+            refresher_.shutdownNow();
+        }
+    }
+
+    private Entry load(String _userName) throws JargonException
+    {
+        Set<String> groupNames = new HashSet<>();
+
+        for (UserGroup ug : factory_.getUserGroupAO(adminAcct_).findUserGroupsForUser(_userName))
+        {
+            groupNames.add(ug.getUserGroupName());
+        }
+
+        Entry entry = new Entry(Set.copyOf(groupNames), System.currentTimeMillis());
+
+        if (refreshTimeInMillis_ > 0)
+        {
+            entries_.put(_userName, entry);
+        }
+
+        return entry;
+    }
+
+    private void refresh(String _userName)
+    {
+        try
+        {
+            load(_userName);
+            metrics_.increment("group_membership_cache.refreshes");
+        }
+        catch (JargonException e)
+        {
+            // The entry expires and is loaded on demand.
+            log_.warn("refresh - Could not refresh the groups of [{}]: {}", _userName, e.getMessage());
+        }
+        finally
+        {
+            refreshing_.remove(_userName);
+            factory_.closeSessionAndEatExceptions();
+        }
+    }
+}
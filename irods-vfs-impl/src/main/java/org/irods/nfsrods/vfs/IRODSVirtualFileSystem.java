@@ -27,20 +27,34 @@ import static org.dcache.nfs.v4.xdr.nfs4_prot.ACE4_WRITE_DATA;
 import static org.dcache.nfs.v4.xdr.nfs4_prot.ACE4_WRITE_NAMED_ATTRS;
 import static org.dcache.nfs.v4.xdr.nfs4_prot.ACE4_WRITE_OWNER;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.cache.Cache;
 import javax.cache.CacheManager;
 import javax.cache.configuration.MutableConfiguration;
+import javax.cache.expiry.AccessedExpiryPolicy;
 import javax.cache.expiry.CreatedExpiryPolicy;
 import javax.cache.expiry.Duration;
 import javax.security.auth.Subject;
@@ -52,6 +66,7 @@ import org.dcache.auth.Subjects;
 import org.dcache.nfs.ChimeraNFSException;
 import org.dcache.nfs.status.ExistException;
 import org.dcache.nfs.status.NoEntException;
+import org.dcache.nfs.status.NotSameException;
 import org.dcache.nfs.v4.NfsIdMapping;
 import org.dcache.nfs.v4.xdr.aceflag4;
 import org.dcache.nfs.v4.xdr.acemask4;
@@ -82,17 +97,14 @@ import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
 import org.irods.jargon.core.pub.IRODSFileSystemAO;
 import org.irods.jargon.core.pub.IRODSGenQueryExecutor;
 import org.irods.jargon.core.pub.UserAO;
-import org.irods.jargon.core.pub.UserGroupAO;
 import org.irods.jargon.core.pub.domain.ObjStat;
 import org.irods.jargon.core.pub.domain.User;
 import org.irods.jargon.core.pub.domain.UserFilePermission;
-import org.irods.jargon.core.pub.domain.UserGroup;
 import org.irods.jargon.core.pub.io.FileIOOperations;
 import org.irods.jargon.core.pub.io.IRODSFile;
 import org.irods.jargon.core.pub.io.IRODSFileFactory;
 import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
 import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
-import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
 import org.irods.jargon.core.query.GenQueryBuilderException;
 import org.irods.jargon.core.query.IRODSGenQueryBuilder;
 import org.irods.jargon.core.query.IRODSGenQueryFromBuilder;
@@ -122,6 +134,28 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     private final ReadWriteAclAllowlist readWriteAclAllowlist_;
     private final boolean allowOverwriteOfExistingFiles_;
     private final boolean usingOracleDB_;
+    private final Metrics metrics_;
+    private final ReadHandleCache readHandleCache_;
+    private final ReadAheadEngine readAheadEngine_;
+    private final BlockCache blockCache_;
+    private final ReadCoalescer readCoalescer_;
+    private final SmallObjectCache smallObjectCache_;
+    private final WriteHandleCache writeHandleCache_;
+    private final WriteJournal writeJournal_;
+    private final WriteOverlay writeOverlay_;
+    private final WriteBehindBuffer writeBehindBuffer_;
+    private final SmallFileIngest smallFileIngest_;
+    private final ExecutorService listingExecutor_;
+    private final Path listingSpillDirectory_;
+    private final int listingSpillThreshold_;
+    private final ListingSpecificQuery listingSpecificQuery_;
+    private final boolean listingStrictAclPolicy_;
+    private final GroupMembershipCache groupMembershipCache_;
+    private final DirectoryListingDelta listingDelta_;
+    private final TreeWalkPrefetcher treeWalkPrefetcher_;
+    private final int listingTrustWindowInMillis_;
+    private final Map<String, CompletableFuture<DirectoryListing>> listingValidations_; // Key: <collection>
+    private final ListingVersions listingVersions_;
 
     private final MutableConfiguration<String, Stat> statObjectCacheConfig_; // Key: <username>_<path>
     private final Cache<String, Stat> statObjectCache_;                      // Key: <username>_<path>
@@ -138,8 +172,14 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     private final MutableConfiguration<String, UserTypeEnum> userTypeCacheConfig_; // Key: <username>
     private final Cache<String, UserTypeEnum> userTypeCache_;                      // Key: <username>
 
-    private final MutableConfiguration<String, Object> listOpCacheConfig_; // Key: <username>#<collection>
-    private final Cache<String, Object> listOpCache_;                      // Key: <username>#<collection>
+    private final MutableConfiguration<String, Object> listOpCacheConfig_; // Key: <collection>
+    private final Cache<String, Object> listOpCache_;                      // Key: <collection>
+
+    private final MutableConfiguration<String, DirectoryView> listingViewCacheConfig_; // Key: <username>#<collection>
+    private final Cache<String, DirectoryView> listingViewCache_;                      // Key: <username>#<collection>
+
+    private final MutableConfiguration<String, DirectoryView> listingSnapshotCacheConfig_; // Key: <username>#<collection>#<generation>
+    private final Cache<String, DirectoryView> listingSnapshotCache_;                      // Key: <username>#<collection>#<generation>
 
     // Special paths within iRODS.
     private final Path ROOT_COLLECTION;
@@ -152,7 +192,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                                   IRODSAccessObjectFactory _factory,
                                   IRODSIdMapper _idMapper,
                                   CacheManager _cacheManager)
-        throws DataNotFoundException, JargonException
+        throws DataNotFoundException, JargonException, IOException
     {
         factory_ = _factory;
         idMapper_ = _idMapper;
@@ -205,10 +245,157 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         userTypeCache_ = _cacheManager.createCache("user_type_cache", userTypeCacheConfig_);
 
         expiryTime = nfsSvrConfig.getListOperationQueryResultsRefreshTimeInMilliseconds();
+        // Listings and views are released as they leave the caches, so that the spill
+        // files of a listing are closed as soon as nothing refers to it.
         listOpCacheConfig_ = newCacheConfig(expiryTime, Object.class);
+        listOpCacheConfig_.addCacheEntryListenerConfiguration(CacheReleaseListener.configurationOf(IRODSVirtualFileSystem::releaseListing));
         listOpCache_ = _cacheManager.createCache("list_op_cache", listOpCacheConfig_);
+
+        listingViewCacheConfig_ = newCacheConfig(expiryTime, DirectoryView.class);
+        listingViewCacheConfig_.addCacheEntryListenerConfiguration(CacheReleaseListener.configurationOf(DirectoryView::release));
+        listingViewCache_ = _cacheManager.createCache("listing_view_cache", listingViewCacheConfig_);
+
+        // Views stay alive for as long as a client keeps paging through them.
+        // @formatter:off
+        listingSnapshotCacheConfig_ = new MutableConfiguration<String, DirectoryView>()
+            .setTypes(String.class, DirectoryView.class)
+            .setStoreByValue(false)
+            .setExpiryPolicyFactory(AccessedExpiryPolicy.factoryOf(new Duration(TimeUnit.MILLISECONDS, expiryTime)))
+            .addCacheEntryListenerConfiguration(CacheReleaseListener.configurationOf(DirectoryView::release));
+        // @formatter:on
+        listingSnapshotCache_ = _cacheManager.createCache("listing_snapshot_cache", listingSnapshotCacheConfig_);
+
+        // Listing pages are fetched on their own connections so that they can be in flight
+        // at the same time.
+        final int listingFetchThreads = nfsSvrConfig.getDirectoryListingFetchThreads();
+        listingExecutor_ = (listingFetchThreads > 0) ? Executors.newFixedThreadPool(listingFetchThreads) : null;
+
+        final String listingSpillDirectory = nfsSvrConfig.getDirectoryListingSpillDirectory();
+        listingSpillDirectory_ = (null != listingSpillDirectory && !listingSpillDirectory.isEmpty()) ? Paths.get(listingSpillDirectory) : null;
+        listingSpillThreshold_ = nfsSvrConfig.getDirectoryListingSpillThreshold();
+
+        final String listingSpecificQuery = nfsSvrConfig.getDirectoryListingSpecificQuery();
+        listingSpecificQuery_ = (null != listingSpecificQuery && !listingSpecificQuery.isEmpty()) ? new ListingSpecificQuery(factory_, listingSpecificQuery) : null;
+
+        listingTrustWindowInMillis_ = nfsSvrConfig.getListOperationTrustWindowInMilliseconds();
+        listingStrictAclPolicy_ = nfsSvrConfig.isDirectoryListingStrictAclPolicy();
+        listingValidations_ = new ConcurrentHashMap<>();
+        listingVersions_ = new ListingVersions();
+
+        // Overlay entries must outlive the attributes they compensate for.
+        writeOverlay_ = new WriteOverlay(Math.max(nfsSvrConfig.getFileInfoRefreshTimeInMilliseconds(),
+                                                  nfsSvrConfig.getListOperationQueryResultsRefreshTimeInMilliseconds()));
+
+        metrics_ = new Metrics(nfsSvrConfig.getMetricsLoggingIntervalInMilliseconds());
+
+        // @formatter:off
+        groupMembershipCache_ = new GroupMembershipCache(factory_,
+                                                         adminAcct_,
+                                                         nfsSvrConfig.getGroupMembershipRefreshTimeInMilliseconds(),
+                                                         metrics_);
+
+        listingDelta_ = new DirectoryListingDelta(factory_, adminAcct_, metrics_);
+
+        treeWalkPrefetcher_ = new TreeWalkPrefetcher(nfsSvrConfig.getTreeWalkPrefetchDepth(),
+                                                     nfsSvrConfig.getTreeWalkPrefetchThreads(),
+                                                     new TreeWalker(),
+                                                     metrics_);
+
+        readHandleCache_ = new ReadHandleCache(factory_,
+                                               nfsSvrConfig.getReadHandleCacheMaxHandles(),
+                                               nfsSvrConfig.getReadHandleCacheIdleTimeoutInMilliseconds(),
+                                               nfsSvrConfig.getReadHandleCacheThreads(),
+                                               nfsSvrConfig.getReadStreamsPerDataObject(),
+                                               nfsSvrConfig.getParallelReadStripeSizeInBytes(),
+                                               metrics_);
+
+        readAheadEngine_ = new ReadAheadEngine(nfsSvrConfig.getReadAheadBufferSizeInBytes(),
+                                               nfsSvrConfig.getReadAheadInitialWindowSizeInBytes(),
+                                               nfsSvrConfig.getReadAheadMaxWindowSizeInBytes(),
+                                               nfsSvrConfig.getReadAheadMaxMemoryInBytes(),
+                                               metrics_);
+
+        DiskBlockCache diskBlockCache = new DiskBlockCache(nfsSvrConfig.getBlockCacheDiskDirectory(),
+                                                           nfsSvrConfig.getBlockCacheBlockSizeInBytes(),
+                                                           nfsSvrConfig.getBlockCacheDiskMaxSizeInBytes(),
+                                                           metrics_);
+
+        readCoalescer_ = new ReadCoalescer(metrics_);
+
+        smallObjectCache_ = new SmallObjectCache(nfsSvrConfig.getSmallObjectMaxSizeInBytes(),
+                                                 nfsSvrConfig.getSmallObjectCacheMaxMemoryInBytes(),
+                                                 metrics_);
+
+        blockCache_ = new BlockCache(nfsSvrConfig.getBlockCacheBlockSizeInBytes(),
+                                     nfsSvrConfig.getBlockCacheMaxMemoryInBytes(),
+                                     diskBlockCache,
+                                     metrics_);
+
+        writeHandleCache_ = new WriteHandleCache(factory_,
+                                                 nfsSvrConfig.getWriteHandleCacheIdleTimeoutInMilliseconds(),
+                                                 nfsSvrConfig.getWriteHandleCacheMaxHandles(),
+                                                 this::onDataObjectChanged,
+                                                 metrics_);
+
+        writeJournal_ = new WriteJournal(nfsSvrConfig.getWriteJournalDirectory(), metrics_);
+
+        writeBehindBuffer_ = new WriteBehindBuffer(factory_,
+                                                   nfsSvrConfig.getWriteBehindMaxMemoryInBytes(),
+                                                   nfsSvrConfig.getWriteBehindFlushSizeInBytes(),
+                                                   nfsSvrConfig.getWriteStreamsPerDataObject(),
+                                                   nfsSvrConfig.getParallelWriteThresholdInBytes(),
+                                                   nfsSvrConfig.getWriteBehindIdleFlushTimeoutInMilliseconds(),
+                                                   writeHandleCache_,
+                                                   writeJournal_,
+                                                   this::onDataObjectChanged,
+                                                   metrics_);
+
+        smallFileIngest_ = new SmallFileIngest(factory_,
+                                               nfsSvrConfig.getSmallFileIngestMaxFileSizeInBytes(),
+                                               nfsSvrConfig.getSmallFileIngestMaxMemoryInBytes(),
+                                               nfsSvrConfig.getSmallFileIngestUploadDelayInMilliseconds(),
+                                               nfsSvrConfig.getSmallFileIngestUploadThreads(),
+                                               this::onDataObjectChanged,
+                                               this::onPendingFileUploadFailed,
+                                               metrics_);
+        // @formatter:on
+
+        // Writes acknowledged before the last shutdown (or crash) must reach iRODS
+        // before any new request is served.
+        writeJournal_.replay((user, path, offset, data) -> replayJournaledWrite(_config, user, path, offset, data));
+    }
+
+    // Releases resources held across requests (e.g. open data objects).
+    public void close()
+    {
+        // Buffered writes must reach iRODS before anything else is torn down.
+        smallFileIngest_.close();
+        writeBehindBuffer_.close();
+        writeHandleCache_.close();
+        writeJournal_.close();
+        blockCache_.close();
+        readAheadEngine_.close();
+        readHandleCache_.close();
+        treeWalkPrefetcher_.close();
+
+        if (null != listingExecutor_)
+        {
+            listingExecutor_.shutdownNow();
+        }
+
+        groupMembershipCache_.close();
+
+        metrics_.close();
     }
     
+    private static void releaseListing(Object _value)
+    {
+        if (_value instanceof DirectoryListing listing)
+        {
+            listing.release();
+        }
+    }
+
     private static <V> MutableConfiguration<String, V> newCacheConfig(int _expiryTimeInMillis, Class<V> _class)
     {
         // @formatter:off
@@ -245,7 +432,27 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     @Override
     public void commit(Inode _inode, long _offset, int _count) throws IOException
     {
-        // NOP
+        log_.debug("vfs::commit");
+
+        smallFileIngest_.flush(toInodeNumber(_inode));
+
+        if (!writeBehindBuffer_.isEnabled() && !writeHandleCache_.isEnabled())
+        {
+            // Every WRITE is FILE_SYNC.
+            return;
+        }
+
+        try
+        {
+            // The whole data object is flushed and finalized regardless of the range requested.
+            final long inodeNumber = toInodeNumber(_inode);
+            writeBehindBuffer_.commit(inodeNumber);
+            writeHandleCache_.commit(inodeNumber);
+        }
+        finally
+        {
+            closeCurrentConnection();
+        }
     }
 
     @Override
@@ -277,6 +484,23 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         try
         {
             IRODSAccount acct = idMapper_.resolveUser((int) Subjects.getUid(_subject)).getAccount();
+
+            // Clients look the name up before creating it, so a path that is not mapped
+            // is not known to exist in iRODS. It may still have been created by another
+            // client. The deferred upload creates the data object exclusively and fails
+            // if it exists.
+            if (!inodeToPathMapper_.isMapped(path))
+            {
+                Long pendingInodeNumber = smallFileIngest_.create(acct, Paths.get(path));
+
+                if (null != pendingInodeNumber)
+                {
+                    inodeToPathMapper_.map(pendingInodeNumber, path);
+                    invalidateDirectoryListing(parentPath.toString());
+                    return toFh(pendingInodeNumber);
+                }
+            }
+
             IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
             IRODSFile newFile = ff.instanceIRODSFile(path);
 
@@ -290,7 +514,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                 }
             }
             
-            listOpCache_.remove(acct.getUserName() + "#" + parentPath.toString());
+            invalidateDirectoryListing(parentPath.toString());
             statObjectCache_.remove(acct.getUserName() + "_" + parentPath.toString());
             statObjectCache_.remove(acct.getUserName() + "_" + path.toString());
 
@@ -316,7 +540,36 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     @Override
     public byte[] directoryVerifier(Inode _inode) throws IOException
     {
-        return DirectoryStream.ZERO_VERIFIER;
+        log_.debug("vfs::directoryVerifier");
+
+        try
+        {
+            IRODSAccount acct = getCurrentIRODSUser().getAccount();
+            String path = getPath(toInodeNumber(_inode)).toString();
+
+            // The verifier stays the same until the collection is known to have changed.
+            var view = listingViewCache_.get(acct.getUserName() + "#" + path);
+
+            if (null == view || view.getListing() != listOpCache_.get(path) || view.getListing().isStale())
+            {
+                Set<String> groupsContainingUser = groupMembershipCache_.getGroupNames(acct.getUserName());
+                view = getDirectoryView(acct, path, groupsContainingUser, DirectoryStream.ZERO_VERIFIER, 0);
+
+                // Only the verifier is needed.
+                view.release();
+            }
+
+            return view.getVerifier();
+        }
+        catch (JargonException e)
+        {
+            log_.error(e.getMessage());
+            throw new IOException(e);
+        }
+        finally
+        {
+            closeCurrentConnection();
+        }
     }
     
     @Override
@@ -324,7 +577,10 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     {
         log_.debug("vfs::getAcl");
 
-        String path = getPath(toInodeNumber(_inode)).toString();
+        final long inodeNumber = toInodeNumber(_inode);
+        smallFileIngest_.flush(inodeNumber);
+
+        String path = getPath(inodeNumber).toString();
 
         log_.debug("getAcl - _inode path = {}", path);
 
@@ -578,7 +834,10 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
             return;
         }
 
-        String path = getPath(toInodeNumber(_inode)).toString();
+        final long inodeNumber = toInodeNumber(_inode);
+        smallFileIngest_.flush(inodeNumber);
+
+        String path = getPath(inodeNumber).toString();
 
         log_.debug("""
                    setAcl - _inode path = {}
@@ -657,13 +916,8 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         log_.debug("isAllowedToReadWriteAclForPath - User [{}] does not have special " +
                    "privileges to read/write ACLs. Checking groups ...", _userName);
 
-        UserGroupAO ugao = factory_.getUserGroupAO(adminAcct_);
-        List<UserGroup> groupsContainingUser = ugao.findUserGroupsForUser(_userName);
-
-        for (UserGroup ug : groupsContainingUser)
+        for (String groupName : groupMembershipCache_.getGroupNames(_userName))
         {
-            String groupName = ug.getUserGroupName();
-
             if (readWriteAclAllowlist_.contains(groupName))
             {
                 String prefix = readWriteAclAllowlist_.getPathPrefix(groupName);
@@ -704,6 +958,14 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
 
         long inodeNum = toInodeNumber(_inode);
         String path = getPath(inodeNum).toString();
+
+        // The creator of a file that is not in iRODS yet will own the data object.
+        SmallFileIngest.PendingFile pendingFile = smallFileIngest_.get(inodeNum);
+
+        if (null != pendingFile)
+        {
+            return pendingFile.acct_.getUserName().equals(userName) ? Access.ALLOW : Access.DENY;
+        }
         
         // Key   (String) => <user_id>#<access_mask>#<path>
         // Value (Access) => ALLOW/DENY
@@ -883,9 +1145,21 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         long inodeNumber = toInodeNumber(_inode);
         Path path = getPath(inodeNumber);
 
+        SmallFileIngest.PendingFile pendingFile = smallFileIngest_.get(inodeNumber);
+
+        if (null != pendingFile)
+        {
+            return statPendingFile(pendingFile);
+        }
+
         try
         {
-            return statPath(path, inodeNumber);
+            // Writes buffered in memory (or not yet finalized in iRODS) extend the data
+            // object beyond what iRODS reports.
+            final long dirtyEnd = Math.max(writeBehindBuffer_.getDirtyEnd(inodeNumber),
+                                           writeHandleCache_.getWrittenEnd(inodeNumber));
+
+            return writeOverlay_.apply(inodeNumber, statPath(path, inodeNumber), dirtyEnd);
         }
         finally
         {
@@ -905,74 +1179,216 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         throw new UnsupportedOperationException("Not supported");
     }
     
-    private static final class CachedListingGenQueryResult
+    // Returns the snapshot of the collection shared by every user. It is reused as long
+    // as the collection's mtime has not changed since it was taken. Within the trust
+    // window, it is reused without asking iRODS.
+    private DirectoryListing getDirectoryListing(String _path) throws JargonException
     {
-        Date collectionLastModified;
-        List<CollectionAndDataObjectListingEntry> entries;
+        var listing = (DirectoryListing) listOpCache_.get(_path);
+
+        if (isTrusted(listing))
+        {
+            metrics_.increment("listing.trusted");
+            return listing;
+        }
+
+        // Concurrent callers share a single validation.
+        CompletableFuture<DirectoryListing> validation = new CompletableFuture<>();
+        CompletableFuture<DirectoryListing> inFlight = listingValidations_.putIfAbsent(_path, validation);
+
+        if (null != inFlight)
+        {
+            metrics_.increment("listing.coalesced_validations");
+
+            try
+            {
+                return inFlight.join();
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof JargonException je)
+                {
+                    throw je;
+                }
+
+                throw new JargonException(e.getCause());
+            }
+        }
+
+        try
+        {
+            listing = validateDirectoryListing(_path);
+            validation.complete(listing);
+            return listing;
+        }
+        catch (JargonException | RuntimeException e)
+        {
+            validation.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            listingValidations_.remove(_path, validation);
+        }
     }
-    
-    private List<CollectionAndDataObjectListingEntry> listDataObjectsAndCollectionsUnderPathWithPermissions(IRODSAccount _acct,
-                                                                                                            String _path)
-        throws JargonException
+
+    // Returns true if the listing may be served without asking iRODS whether the
+    // collection has changed.
+    private boolean isTrusted(DirectoryListing _listing)
     {
-        final String cachedObjectKey = _acct.getUserName() + "#" + _path;
-        var cachedResult = (CachedListingGenQueryResult) listOpCache_.get(cachedObjectKey);
+        return null != _listing && !_listing.isStale() && System.currentTimeMillis() - _listing.getLastValidatedTime() < listingTrustWindowInMillis_;
+    }
+
+    private DirectoryListing validateDirectoryListing(String _path) throws JargonException
+    {
+        var listing = (DirectoryListing) listOpCache_.get(_path);
 
-        CollectionAndDataObjectListAndSearchAO lao = factory_.getCollectionAndDataObjectListAndSearchAO(_acct);
+        CollectionAndDataObjectListAndSearchAO lao = factory_.getCollectionAndDataObjectListAndSearchAO(adminAcct_);
         ObjStat objStat = lao.retrieveObjectStatForPath(_path);
-        
-        if (null != cachedResult)
+
+        // Because iRODS timestamps are stored in seconds, operations that trigger
+        // an mtime update may not be detected by NFSRODS if the operations happen
+        // within the same second.
+        //
+        // To get around this limitation, NFSRODS must manually clear this cache
+        // so that the user sees the updates.
+        if (null != listing && !listing.isStale() && objStat.getModifiedAt().equals(listing.getCollectionLastModified()))
         {
-            // Return the cached results if the collection's contents has not changed
-            // since we last saw it.
-            if (objStat.getModifiedAt().equals(cachedResult.collectionLastModified))
-            {
-            	log_.debug("listDataObjectsAndCollectionsUnderPathWithPermissions - " +
-            	           "mtime has not changed for [{}]. Returning cached result.", _path);
+            log_.debug("validateDirectoryListing - mtime has not changed for [{}]. Returning cached result.", _path);
+            listing.markValidated();
+            return listing;
+        }
 
-                // Because iRODS timestamps are stored in seconds, operations that trigger
-                // an mtime update may not be detected by NFSRODS if the operations happen
-                // within the same second.
-                //
-                // To get around this limitation, NFSRODS must manually clear this cache
-                // so that the user sees the updates.
-                return cachedResult.entries;
+        DirectoryListing refreshed = null;
+
+        // The listing may leave the cache (and be closed) while it is being refreshed.
+        if (null != listing && listing.retain())
+        {
+            try
+            {
+                refreshed = listingDelta_.refresh(listing, objStat.getModifiedAt());
+            }
+            finally
+            {
+                listing.release();
             }
-            
-            cachedResult.entries.clear();
         }
-        else
+
+        if (null != refreshed)
         {
-            cachedResult = new CachedListingGenQueryResult();
-            cachedResult.entries = new ArrayList<>();
+            refreshed.setVersion(listingVersions_.get(_path, objStat.getModifiedAt()));
+            listOpCache_.put(_path, refreshed);
+            return refreshed;
         }
 
-        log_.debug("listDataObjectsAndCollectionsUnderPathWithPermissions - Listing contents of [{}] ...", _path);
+        log_.debug("validateDirectoryListing - Listing contents of [{}] ...", _path);
+
+        // @formatter:off
+        listing = new DirectoryListing(factory_,
+                                       adminAcct_,
+                                       _path,
+                                       objStat.getModifiedAt(),
+                                       usingOracleDB_,
+                                       listingExecutor_,
+                                       listingSpillDirectory_,
+                                       listingSpillThreshold_,
+                                       (null != listingSpecificQuery_ && listingSpecificQuery_.isEnabled()) ? listingSpecificQuery_ : null,
+                                       metrics_);
+        // @formatter:on
+        listing.setVersion(listingVersions_.get(_path, objStat.getModifiedAt()));
+        listOpCache_.put(_path, listing);
+
+        return listing;
+    }
 
-        cachedResult.collectionLastModified = objStat.getModifiedAt();
+    // Called after NFSRODS changes the collection. The listing is kept as the base of an
+    // incremental refresh.
+    private void invalidateDirectoryListing(String _path)
+    {
+        listingVersions_.bump(_path);
 
-        List<CollectionAndDataObjectListingEntry> entries = cachedResult.entries;
-        int pagingIndex = 0;
+        var listing = (DirectoryListing) listOpCache_.get(_path);
 
-        do
+        if (null != listing)
         {
-            entries.addAll(lao.listCollectionsUnderPathWithPermissions(_path, pagingIndex, usingOracleDB_));
-            pagingIndex = entries.size();
+            listing.markStale();
         }
-        while (pagingIndex > 0 && !entries.get(pagingIndex - 1).isLastResult());
+    }
 
-        pagingIndex = 0;
+    // Returns the user's view of the collection. A READDIR continuation is served from
+    // the view identified by its cookie verifier, so its cookies keep referring to the
+    // same entries and the collection is not stat'd again. If that view is gone, the
+    // client must start over (NFS4ERR_NOT_SAME). A new listing reuses the current view
+    // only if it is still backed by the current shared snapshot.
+    //
+    // The view is returned with a reference taken for the caller, who must release it.
+    private DirectoryView getDirectoryView(IRODSAccount _acct,
+                                           String _path,
+                                           Set<String> _groupsContainingUser,
+                                           byte[] _verifier,
+                                           long _cookie)
+        throws IOException, JargonException
+    {
+        final String userName = _acct.getUserName();
 
-        do
+        if (_cookie > 2 && !Arrays.equals(DirectoryStream.ZERO_VERIFIER, _verifier))
         {
-            entries.addAll(lao.listDataObjectsUnderPathWithPermissions(_path, pagingIndex, usingOracleDB_));
-            pagingIndex = entries.size();
+            var view = listingSnapshotCache_.get(userName + "#" + _path + "#" + DirectoryView.toGeneration(_verifier));
+
+            if (null == view || !_path.equals(view.getListing().getPath()) || !view.retain())
+            {
+                log_.debug("getDirectoryView - View of [{}] is no longer available.", _path);
+                throw new NotSameException("Directory listing has changed");
+            }
+
+            return view;
         }
-        while (pagingIndex > 0 && !entries.get(pagingIndex - 1).isLastResult());
-        
-        listOpCache_.put(cachedObjectKey, cachedResult);
 
-        return entries;
+        final String cachedViewKey = userName + "#" + _path;
+        var view = listingViewCache_.get(cachedViewKey);
+
+        if (null != view && _cookie > 2 && view.retain())
+        {
+            return view;
+        }
+
+        // A listing is closed once it has left the cache and its views are gone. If that
+        // happens before it is retained here, the listing is taken again.
+        for (int attempt = 0; attempt < 3; ++attempt)
+        {
+            DirectoryListing listing = getDirectoryListing(_path);
+
+            if (null != view && view.getListing() == listing && view.retain())
+            {
+                return view;
+            }
+
+            if (!listing.retain())
+            {
+                continue;
+            }
+
+            // Unless the zone enforces a STRICT acAclPolicy, users see every entry, as
+            // they would when listing the collection themselves. Administrators always do.
+            Set<String> principals = null;
+
+            if (listingStrictAclPolicy_ && !isAdministrator(userName))
+            {
+                principals = new HashSet<>(_groupsContainingUser);
+                principals.add(userName);
+            }
+
+            // One reference for the caller and one for each cache.
+            view = new DirectoryView(listing, principals);
+            view.retain();
+            listingViewCache_.put(cachedViewKey, view);
+            view.retain();
+            listingSnapshotCache_.put(userName + "#" + _path + "#" + view.getGeneration(), view);
+
+            return view;
+        }
+
+        throw new IOException("Listing of [" + _path + "] was closed while in use");
     }
 
     @Override
@@ -983,69 +1399,249 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                    list - _cookie = {}""",
                    _cookie);
 
-        List<DirectoryEntry> list = new ArrayList<>();
+        DirectoryView view = null;
 
         try
         {
             IRODSAccount acct = getCurrentIRODSUser().getAccount();
 
             // Get the list of groups the user is a member of.
-            UserGroupAO ugao = factory_.getUserGroupAO(adminAcct_);
-            List<UserGroup> groupsContainingUser = ugao.findUserGroupsForUser(acct.getUserName());
+            Set<String> groupsContainingUser = groupMembershipCache_.getGroupNames(acct.getUserName());
         
             Path parentPath = getPath(toInodeNumber(_inode));
             log_.debug("list - Listing contents of [{}] ...", parentPath);
 
-            String parentPathString = parentPath.toString();
+            view = getDirectoryView(acct, parentPath.toString(), groupsContainingUser, _verifier, _cookie);
+            var source = new DirectoryEntrySource(acct, parentPath, view, groupsContainingUser);
 
-            List<CollectionAndDataObjectListingEntry>
-                entries = listDataObjectsAndCollectionsUnderPathWithPermissions(acct, parentPathString);
-            log_.debug("list - found {} entries.", entries.size());
-            
+            if (0 == _cookie)
+            {
+                treeWalkPrefetcher_.onList(Subject.getSubject(AccessController.getContext()), acct.getUserName(), parentPath.toString());
+            }
+
+            // Only the entries following the cookie are built, so a READDIR continuation
+            // does not pay for the entries already sent.
+            //
             // 0, 1, and 2 are reserved cookie values.
-            long dirEntryCookie = Math.max(2, _cookie);
-
-            // "i" is used to index into the list of entries, therefore it must be greater
-            // than or equal to zero. The starting value of "i" is always "dirEntryCookie - 2"
-            // unless "_cookie" is zero.
-            for (long i = Math.max(0, dirEntryCookie - 2); i < entries.size(); ++i)
-            {
-                // If the "_cookie" value is less than "dirEntryCookie", that means the path needs
-                // to be added to the listing. Previously handled entries will have "dirEntryCookie"
-                // values that are less than or equal to "_cookie". The following if-statement protects
-                // the server from hitting the readdir/duplicate-cookie issue.
-                if (++dirEntryCookie > _cookie)
-                {
-                    CollectionAndDataObjectListingEntry e = entries.get((int) i);
+            return new PagedDirectoryStream(view.getVerifier(), source, Math.max(2, _cookie));
+        }
+        catch (JargonException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            if (null != view)
+            {
+                view.release();
+            }
 
-                    Path path = parentPath.resolve(e.getPathOrName());
-                    log_.debug("list - Entry = {}", path);
+            closeCurrentConnection();
+        }
+    }
 
-                    Long inodeNumber = inodeToPathMapper_.getInodeNumberByPath(path);
+    // Produces the READDIR entries of a collection. The entry at position "i" of the
+    // user's view has the cookie "i + 3". Files that have not been uploaded yet follow the
+    // entries known to iRODS. The caller closes the iRODS connection.
+    private final class DirectoryEntrySource implements PagedDirectoryStream.EntrySource
+    {
+        private static final long FIRST_COOKIE = 3;
+
+        private final IRODSAccount acct_;
+        private final Path parentPath_;
+        private final DirectoryView view_;
+        private final Set<String> groupsContainingUser_;
+        private long pendingFilesCookie_;
+        private List<SmallFileIngest.PendingFile> pendingFiles_;
+
+        DirectoryEntrySource(IRODSAccount _acct, Path _parentPath, DirectoryView _view, Set<String> _groupsContainingUser)
+        {
+            acct_ = _acct;
+            parentPath_ = _parentPath;
+            view_ = _view;
+            groupsContainingUser_ = _groupsContainingUser;
+        }
+
+        @Override
+        public DirectoryEntry get(long _cookie) throws IOException
+        {
+            try
+            {
+                if (null == pendingFiles_)
+                {
+                    CompactListing.Entry e = view_.get(_cookie - FIRST_COOKIE);
 
-                    if (null == inodeNumber)
+                    if (null != e)
                     {
-                        inodeNumber = (long) e.getId();
-                        inodeToPathMapper_.map(inodeNumber, path);
+                        return toDirectoryEntry(e, _cookie);
                     }
-                    
-                    Stat stat = statPath(path, inodeNumber, e, groupsContainingUser);
-                    Inode inode = toFh(inodeNumber);
-                    list.add(new DirectoryEntry(path.getFileName().toString(), inode, stat, dirEntryCookie));
+
+                    // A file uploaded between two READDIRs may be skipped or repeated.
+                    pendingFilesCookie_ = FIRST_COOKIE + view_.size();
+                    pendingFiles_ = smallFileIngest_.list(parentPath_, acct_.getUserName());
                 }
+
+                final long index = _cookie - pendingFilesCookie_;
+
+                if (index < 0 || index >= pendingFiles_.size())
+                {
+                    return null;
+                }
+
+                SmallFileIngest.PendingFile f = pendingFiles_.get((int) index);
+                Inode inode = toFh(f.inodeNumber_);
+
+                return new DirectoryEntry(f.path_.getFileName().toString(), inode, statPendingFile(f), _cookie);
+            }
+            catch (JargonException e)
+            {
+                throw new IOException(e);
             }
         }
-        catch (JargonException e)
+
+        private DirectoryEntry toDirectoryEntry(CompactListing.Entry _entry, long _cookie) throws IOException
         {
-            throw new IOException(e);
+            Path path = parentPath_.resolve(_entry.getName());
+            log_.debug("list - Entry = {}", path);
+
+            Long inodeNumber = inodeToPathMapper_.getInodeNumberByPath(path);
+
+            if (null == inodeNumber)
+            {
+                inodeNumber = (long) _entry.getId();
+                inodeToPathMapper_.map(inodeNumber, path);
+            }
+
+            Stat stat = writeOverlay_.apply(inodeNumber, statPath(path, inodeNumber, _entry, groupsContainingUser_), -1);
+            Inode inode = toFh(inodeNumber);
+
+            return new DirectoryEntry(path.getFileName().toString(), inode, stat, _cookie);
         }
-        finally
+    }
+
+    // Lists the collections a TreeWalkPrefetcher expects a client to visit next.
+    private final class TreeWalker implements TreeWalkPrefetcher.Walker
+    {
+        // About as many entries as a READDIR reply holds.
+        private static final long ENTRIES_PER_PREFETCH = 256;
+
+        // The position of the subcollection the client stepped into last, per view of a
+        // parent. A walk visits subcollections in listing order, so the next step's
+        // subcollection is found right after it. Forgotten along with the view.
+        private final Map<DirectoryView, Long> walkPositions_ = Collections.synchronizedMap(new WeakHashMap<>());
+
+        @Override
+        public List<String> getNextSubcollections(String _userName, String _parent, String _child, int _count) throws Exception
         {
-            closeCurrentConnection();
+            // The walk follows the user's view, so only collections the user can see are prefetched.
+            var view = listingViewCache_.get(_userName + "#" + _parent);
+            List<String> subcollections = new ArrayList<>();
+
+            if (null == view || view.getListing().isStale() || !view.retain())
+            {
+                return subcollections;
+            }
+
+            try
+            {
+                final long lastPosition = walkPositions_.getOrDefault(view, 0L);
+                long position = indexOfSubcollection(view, _child, lastPosition, Long.MAX_VALUE);
+
+                if (position < 0)
+                {
+                    // The client stepped back (or out of order).
+                    position = indexOfSubcollection(view, _child, 0, lastPosition);
+                }
+
+                if (position < 0)
+                {
+                    return subcollections;
+                }
+
+                walkPositions_.put(view, position);
+
+                for (long i = position + 1; subcollections.size() < _count; ++i)
+                {
+                    CompactListing.Entry e = view.get(i);
+
+                    if (null == e || ObjectType.DATA_OBJECT == e.getObjectType())
+                    {
+                        break;
+                    }
+
+                    subcollections.add(e.getPathOrName());
+                }
+
+                return subcollections;
+            }
+            finally
+            {
+                view.release();
+                closeCurrentConnection();
+            }
+        }
+
+        // Returns the position of the subcollection within [_from, _to) of the view, or -1.
+        // Collections are listed before data objects.
+        private long indexOfSubcollection(DirectoryView _view, String _path, long _from, long _to) throws JargonException
+        {
+            for (long i = _from; i < _to; ++i)
+            {
+                CompactListing.Entry e = _view.get(i);
+
+                if (null == e || ObjectType.DATA_OBJECT == e.getObjectType())
+                {
+                    break;
+                }
+
+                if (e.getPathOrName().equals(_path))
+                {
+                    return i;
+                }
+            }
+
+            return -1;
         }
 
-        // Uses the DirectoryStream.ZERO_VERIFIER. See READDIR operation of RFC 7530.
-        return new DirectoryStream(list);
+        @Override
+        public void prefetch(Subject _subject, String _path) throws Exception
+        {
+            // The collection is listed under the user's identity, so the user's view,
+            // stats and permissions are what gets cached.
+            Subject.doAs(_subject, (PrivilegedExceptionAction<Void>) () -> {
+                try
+                {
+                    IRODSAccount acct = getCurrentIRODSUser().getAccount();
+                    Set<String> groupsContainingUser = groupMembershipCache_.getGroupNames(acct.getUserName());
+                    Path path = Paths.get(_path);
+
+                    DirectoryView view = getDirectoryView(acct, _path, groupsContainingUser, DirectoryStream.ZERO_VERIFIER, 0);
+
+                    try
+                    {
+                        var source = new DirectoryEntrySource(acct, path, view, groupsContainingUser);
+
+                        for (long cookie = DirectoryEntrySource.FIRST_COOKIE; cookie < DirectoryEntrySource.FIRST_COOKIE + ENTRIES_PER_PREFETCH; ++cookie)
+                        {
+                            if (null == source.get(cookie))
+                            {
+                                break;
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        view.release();
+                    }
+
+                    return null;
+                }
+                finally
+                {
+                    closeCurrentConnection();
+                }
+            });
+        }
     }
 
     @Override
@@ -1062,6 +1658,23 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                    lookup - Looking up [{}] ...""",
                    _path, parentPath, targetPath);
 
+        SmallFileIngest.PendingFile pendingFile = smallFileIngest_.get(targetPath);
+
+        if (null != pendingFile)
+        {
+            return toFh(pendingFile.inodeNumber_);
+        }
+
+        // Within the trust window, a name listed in the parent's cached listing (and
+        // mapped while it was listed) is known to exist.
+        Long listedInodeNumber = inodeToPathMapper_.getInodeNumberByPath(targetPath);
+
+        if (null != listedInodeNumber && isTrusted((DirectoryListing) listOpCache_.get(parentPath.toString())))
+        {
+            metrics_.increment("lookup.trusted");
+            return toFh(listedInodeNumber);
+        }
+
         try
         {
             CollectionAndDataObjectListAndSearchAO lao = null;
@@ -1142,7 +1755,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
             //
             // To get around this limitation, NFSRODS must manually clear this cache
             // so that the user sees the updates.
-            listOpCache_.remove(acct.getUserName() + "#" + parentPath.toString());
+            invalidateDirectoryListing(parentPath.toString());
             statObjectCache_.remove(acct.getUserName() + "_" + parentPath.toString());
             statObjectCache_.remove(acct.getUserName() + "_" + path.toString());
 
@@ -1193,6 +1806,18 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                        move - Destination path = {}""",
                        srcPath, dstPath);
 
+            // Files that have not been uploaded yet must exist in iRODS before they
+            // can be renamed or replaced.
+            for (Path p : Arrays.asList(srcPath, dstPath))
+            {
+                SmallFileIngest.PendingFile pendingFile = smallFileIngest_.get(p);
+
+                if (null != pendingFile)
+                {
+                    smallFileIngest_.flush(pendingFile.inodeNumber_);
+                }
+            }
+
             IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
             IRODSFile srcFile = ff.instanceIRODSFile(srcPath.toString());
             IRODSFile dstFile = ff.instanceIRODSFile(dstPath.toString());
@@ -1202,6 +1827,11 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
             final boolean dstFileExists = dstFile.exists();
             final boolean dstFileIsDataObject = (dstFileExists && dstFile.isFile());
 
+            // Buffered writes and open write handles refer to the data object by its current path.
+            final long srcInodeNumber = getInodeNumber(srcPath);
+            writeBehindBuffer_.flush(srcInodeNumber);
+            writeHandleCache_.close(srcInodeNumber);
+
             try (AutoClosedIRODSFile ac0 = new AutoClosedIRODSFile(srcFile);
                  AutoClosedIRODSFile ac1 = new AutoClosedIRODSFile(dstFile))
             {
@@ -1233,12 +1863,21 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
 
                 if (inodeNumber != null)
                 {
+                    writeBehindBuffer_.discard(inodeNumber);
+                    writeHandleCache_.discard(inodeNumber);
+                    writeOverlay_.remove(inodeNumber);
+                    invalidateCachedData(inodeNumber);
                     inodeToPathMapper_.unmap(inodeNumber, dstPath);
                 }
             }
 
+            // Journaled writes to the source were written to iRODS by the flush above. They
+            // must not be replayed against an object created at the source path later.
+            writeBehindBuffer_.discard(srcInodeNumber);
+
             // Always map the inode number of the source path to the destination path.
-            inodeToPathMapper_.remap(getInodeNumber(srcPath), srcPath, dstPath);
+            invalidateCachedData(srcInodeNumber);
+            inodeToPathMapper_.remap(srcInodeNumber, srcPath, dstPath);
 
             // Because iRODS timestamps are stored in seconds, operations that trigger
             // an mtime update may not be detected by NFSRODS if the operations happen
@@ -1246,11 +1885,11 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
             //
             // To get around this limitation, NFSRODS must manually clear this cache
             // so that the user sees the updates.
-            listOpCache_.remove(acct.getUserName() + "#" + srcParentPath.toString());
+            invalidateDirectoryListing(srcParentPath.toString());
 
             if (!srcParentPath.equals(dstParentPath))
             {
-            	listOpCache_.remove(acct.getUserName() + "#" + dstParentPath.toString());
+            	invalidateDirectoryListing(dstParentPath.toString());
             }
 
             statObjectCache_.remove(acct.getUserName() + "_" + srcParentPath.toString());
@@ -1292,7 +1931,8 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
 
         try
         {
-            Path path = getPath(toInodeNumber(_inode));
+            long inodeNumber = toInodeNumber(_inode);
+            Path path = getPath(inodeNumber);
 
             log_.debug("""
                        read - _inode path  = {}
@@ -1301,19 +1941,183 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                        read - _count       = {}""",
                        path, _data.length, _offset, _count);
 
-            IRODSAccount acct = getCurrentIRODSUser().getAccount();
-            IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
-            IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(path.toString(), OpenFlags.READ);
-            
+            SmallFileIngest.PendingFile pendingFile = smallFileIngest_.get(inodeNumber);
+
+            if (null != pendingFile)
+            {
+                return pendingFile.read(_data, _offset, _count);
+            }
+
+            // Reads must observe writes that are still buffered in memory or that
+            // have not been finalized in iRODS.
+            if (writeBehindBuffer_.hasDirtyData(inodeNumber))
+            {
+                writeBehindBuffer_.flush(inodeNumber);
+            }
+
+            writeHandleCache_.close(inodeNumber);
+
+            final IRODSAccount acct = getCurrentIRODSUser().getAccount();
+            final int uid = getUserID();
+            final String pathString = path.toString();
+
+            ReadAheadEngine.Source irodsSource = (buffer, bufferOffset, offset, count) ->
+                readFromIRODS(inodeNumber, uid, acct, pathString, buffer, bufferOffset, offset, count);
+
+            // Concurrent readers of the same range share a single fetch.
+            ReadAheadEngine.Source coalescedSource = (buffer, bufferOffset, offset, count) ->
+                readCoalescer_.read(inodeNumber, irodsSource, buffer, bufferOffset, offset, count);
+
+            // @formatter:off
+            ReadAheadEngine.Source source = readAheadEngine_.isEnabled()
+                ? (buffer, bufferOffset, offset, count) -> readAheadEngine_.read(inodeNumber, coalescedSource, buffer, bufferOffset, offset, count)
+                : coalescedSource;
+            // @formatter:on
+
+            if (smallObjectCache_.isEnabled() || blockCache_.isEnabled())
+            {
+                // Cached data is only valid for the version of the data object it was
+                // read from. The stat information is usually served from the cache, so the
+                // overlay is merged in for the version to change with every WRITE.
+                Stat stat = writeOverlay_.apply(inodeNumber, statPath(path, inodeNumber), -1);
+                BlockCache.Version version = new BlockCache.Version(stat.getGeneration(), stat.getSize());
+
+                if (smallObjectCache_.isEnabled() && smallObjectCache_.qualifies(stat.getSize()))
+                {
+                    int bytesRead = readSmallObject(inodeNumber, version, acct, pathString, _data, _offset, _count);
+
+                    if (bytesRead >= 0)
+                    {
+                        return bytesRead;
+                    }
+
+                    // The data object changed since it was stat'd. The stat is evicted so
+                    // that the next read sees the new version.
+                    statObjectCache_.remove(acct.getUserName() + "_" + pathString);
+
+                    return source.read(_data, 0, _offset, _count);
+                }
+
+                if (blockCache_.isEnabled())
+                {
+                    return blockCache_.read(inodeNumber, version, source, _data, 0, _offset, _count);
+                }
+            }
+
+            return source.read(_data, 0, _offset, _count);
+        }
+        catch (IOException e)
+        {
+            log_.error(e.getMessage());
+            throw new IOException(e);
+        }
+        finally
+        {
+            closeCurrentConnection();
+        }
+    }
+
+    // Serves the read from the cached contents of the data object, fetching the
+    // whole data object first if necessary. Returns -1 if the size of the data object
+    // does not match the version (i.e. the stat is stale).
+    private int readSmallObject(long _inodeNumber,
+                                BlockCache.Version _version,
+                                IRODSAccount _acct,
+                                String _path,
+                                byte[] _buffer,
+                                long _offset,
+                                int _count)
+        throws IOException
+    {
+        byte[] contents = smallObjectCache_.get(_inodeNumber, _version);
+
+        if (null == contents)
+        {
+            final long token = smallObjectCache_.token(_inodeNumber);
+
+            // Asking for one byte more than expected reveals whether the data object
+            // grew since it was stat'd.
+            byte[] wholeObject = new byte[(int) _version.size() + 1];
+
+            ReadAheadEngine.Source source = (buffer, bufferOffset, offset, count) ->
+                readWholeObject(_acct, _path, buffer, bufferOffset, count);
+
+            int bytesRead = readCoalescer_.read(_inodeNumber, source, wholeObject, 0, 0, wholeObject.length);
+
+            if (bytesRead != _version.size())
+            {
+                metrics_.increment("small_object_cache.size_mismatches");
+                return -1;
+            }
+
+            contents = Arrays.copyOf(wholeObject, bytesRead);
+            smallObjectCache_.put(_inodeNumber, _version, contents, token);
+        }
+
+        if (_offset >= contents.length)
+        {
+            return 0;
+        }
+
+        int length = (int) Math.min(_count, contents.length - _offset);
+        System.arraycopy(contents, (int) _offset, _buffer, 0, length);
+
+        return length;
+    }
+
+    // Fetches up to _count bytes from the start of the data object through a single
+    // stream instead of an open, seek, read, and close sequence per range. The fetch
+    // never reads more than _count bytes, even if the data object grew.
+    private int readWholeObject(IRODSAccount _acct, String _path, byte[] _buffer, int _bufferOffset, int _count)
+        throws IOException
+    {
+        try (InputStream in = factory_.getIRODSFileFactory(_acct).instanceIRODSFileInputStream(_path))
+        {
+            int length = in.readNBytes(_buffer, _bufferOffset, _count);
+            metrics_.increment("small_object_cache.whole_object_fetches");
+
+            return length;
+        }
+        catch (JargonException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            closeCurrentConnection();
+        }
+    }
+
+    // Reads a range of a data object directly from iRODS. This may be called from
+    // threads other than the NFS worker thread (e.g. when prefetching).
+    private int readFromIRODS(long _inodeNumber,
+                              int _uid,
+                              IRODSAccount _acct,
+                              String _path,
+                              byte[] _buffer,
+                              int _bufferOffset,
+                              long _offset,
+                              int _count)
+        throws IOException
+    {
+        if (readHandleCache_.isEnabled())
+        {
+            return readHandleCache_.read(_inodeNumber, _uid, _acct, _path, _buffer, _bufferOffset, _offset, _count);
+        }
+
+        try
+        {
+            IRODSFileFactory ff = factory_.getIRODSFileFactory(_acct);
+            IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(_path, OpenFlags.READ);
+
             try (AutoClosedIRODSRandomAccessFile ac = new AutoClosedIRODSRandomAccessFile(file))
             {
                 file.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
-                return file.read(_data, 0, _count);
+                return file.read(_buffer, _bufferOffset, _count);
             }
         }
-        catch (IOException | JargonException e)
+        catch (JargonException e)
         {
-            log_.error(e.getMessage());
             throw new IOException(e);
         }
         finally
@@ -1322,6 +2126,43 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         }
     }
 
+    // Called after data has been written to the data object outside of an NFS
+    // request, possibly from a background thread.
+    private void onDataObjectChanged(long _inodeNumber, IRODSAccount _acct, String _path)
+    {
+        invalidateCachedData(_inodeNumber);
+        statObjectCache_.remove(_acct.getUserName() + "_" + _path);
+        invalidateDirectoryListing(Paths.get(_path).getParent().toString());
+    }
+
+    // Called when a file whose creation was deferred could not be created in iRODS (e.g.
+    // another client created a data object at the same path). The file handle must go
+    // stale rather than refer to whatever exists at the path.
+    private void onPendingFileUploadFailed(long _inodeNumber, IRODSAccount _acct, Path _path)
+    {
+        writeOverlay_.remove(_inodeNumber);
+        invalidateCachedData(_inodeNumber);
+
+        if (_path.equals(inodeToPathMapper_.getPathByInodeNumber(_inodeNumber)))
+        {
+            inodeToPathMapper_.unmap(_inodeNumber, _path);
+        }
+
+        statObjectCache_.remove(_acct.getUserName() + "_" + _path);
+        invalidateDirectoryListing(_path.getParent().toString());
+    }
+
+    // Drops every piece of data cached for the inode. This must be called whenever
+    // the contents or location of the data object change.
+    private void invalidateCachedData(long _inodeNumber)
+    {
+        blockCache_.invalidate(_inodeNumber);
+        readCoalescer_.invalidate(_inodeNumber);
+        smallObjectCache_.invalidate(_inodeNumber);
+        readHandleCache_.invalidate(_inodeNumber);
+        readAheadEngine_.invalidate(_inodeNumber);
+    }
+
     @Override
     public String readlink(Inode _inode) throws IOException
     {
@@ -1345,6 +2186,17 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                        parentPath, _path);
 
             Path objectPath = parentPath.resolve(_path);
+            SmallFileIngest.PendingFile pendingFile = smallFileIngest_.get(objectPath);
+
+            // A file that never made it to iRODS only exists locally.
+            if (null != pendingFile && smallFileIngest_.discard(pendingFile.inodeNumber_))
+            {
+                inodeToPathMapper_.unmap(pendingFile.inodeNumber_, objectPath);
+                invalidateDirectoryListing(parentPath.toString());
+                log_.debug("remove - [{}] removed before it was uploaded.", objectPath);
+                return;
+            }
+
             IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
             IRODSFile file = ff.instanceIRODSFile(objectPath.toString());
 
@@ -1358,7 +2210,12 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                 }
             }
 
-            inodeToPathMapper_.unmap(getInodeNumber(objectPath), objectPath);
+            long inodeNumber = getInodeNumber(objectPath);
+            writeBehindBuffer_.discard(inodeNumber);
+            writeHandleCache_.discard(inodeNumber);
+            writeOverlay_.remove(inodeNumber);
+            invalidateCachedData(inodeNumber);
+            inodeToPathMapper_.unmap(inodeNumber, objectPath);
 
             // Because iRODS timestamps are stored in seconds, operations that trigger
             // an mtime update may not be detected by NFSRODS if the operations happen
@@ -1366,7 +2223,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
             //
             // To get around this limitation, NFSRODS must manually clear this cache
             // so that the user sees the updates.
-            listOpCache_.remove(acct.getUserName() + "#" + objectPath.getParent().toString());
+            invalidateDirectoryListing(objectPath.getParent().toString());
 
             // Remove any cached stat information as this can lead to unwanted errors
             // when carrying out later requests.
@@ -1410,10 +2267,18 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                     throw new IOException("iRODS server does not support rc_replica_truncate API. Requires iRODS 4.3.2 or later.");
                 }
 
-                final var path = getPath(toInodeNumber(_inode));
+                final var inodeNumber = toInodeNumber(_inode);
+                final var path = getPath(inodeNumber);
                 log_.debug("setattr - Setting data size of [{}] to [{}] bytes.", path.toString(), _stat.getSize());
+                smallFileIngest_.flush(inodeNumber);
+                writeBehindBuffer_.flush(inodeNumber);
+                writeHandleCache_.close(inodeNumber);
+                invalidateCachedData(inodeNumber);
                 factory_.getDataObjectAO(acct).truncateReplica(path.toString(), _stat.getSize());
 
+                // The data object may have shrunk.
+                writeOverlay_.truncated(inodeNumber);
+
                 // Because iRODS timestamps are stored in seconds, operations that trigger
                 // an mtime update may not be detected by NFSRODS if the operations happen
                 // within the same second.
@@ -1421,7 +2286,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                 // To get around this limitation, NFSRODS must manually clear the cache
                 // so that the user sees the updates.
                 final var parentPath = path.getParent();
-                listOpCache_.remove(acct.getUserName() + "#" + parentPath.toString());
+                invalidateDirectoryListing(parentPath.toString());
                 statObjectCache_.remove(acct.getUserName() + "_" + parentPath.toString());
                 statObjectCache_.remove(acct.getUserName() + "_" + path.toString());
             }
@@ -1452,7 +2317,8 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
 
         try
         {
-            Path path = getPath(toInodeNumber(_inode));
+            long inodeNumber = toInodeNumber(_inode);
+            Path path = getPath(inodeNumber);
 
             log_.debug("""
                        write - _inode path  = {}
@@ -1461,33 +2327,97 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
                        write - _count       = {}""",
                        path, _data.length, _offset, _count);
 
+            // Files that have not been created in iRODS yet are buffered until they are
+            // uploaded in a single put.
+            if (smallFileIngest_.write(inodeNumber, _data, _offset, _count))
+            {
+                if (StabilityLevel.UNSTABLE == _stabilityLevel)
+                {
+                    return new WriteResult(StabilityLevel.UNSTABLE, _count);
+                }
+
+                smallFileIngest_.flush(inodeNumber);
+
+                return new WriteResult(StabilityLevel.FILE_SYNC, _count);
+            }
+
             IRODSAccount acct = getCurrentIRODSUser().getAccount();
 
-            // NFS will attempt to write large files in parallel by calling
-            // the write operation from multiple threads. This will result in
-            // an error if old stat information is used across multiple writes.
-            // We remove any cached stat object for the path to avoid this.
-            statObjectCache_.remove(acct.getUserName() + "_" + path.toString());
+            // Open read handles may hold a stale view of the data object. The caches are
+            // invalidated again once the data has reached iRODS.
+            invalidateCachedData(inodeNumber);
 
-            // Because iRODS timestamps are stored in seconds, operations that trigger
-            // an mtime update may not be detected by NFSRODS if the operations happen
-            // within the same second.
-            //
-            // To get around this limitation, NFSRODS must manually clear this cache
-            // so that the user sees the updates.
-            listOpCache_.remove(acct.getUserName() + "#" + path.getParent().toString());
+            try
+            {
+                // The cached stat and listing entries are not evicted here. Every successful
+                // write updates the overlay instead, which GETATTR and READDIR merge into the
+                // cached attributes. NFS writes large files in parallel from multiple threads,
+                // so evicting on every write would turn each GETATTR during an ingest into a
+                // round trip to iRODS. The caches are evicted once the data object is finalized
+                // (see onDataObjectChanged()).
+                final long end = _offset + _count;
+
+                if (writeBehindBuffer_.isEnabled() || writeHandleCache_.isEnabled())
+                {
+                    boolean flushed = false;
 
-            IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
+                    if (writeBehindBuffer_.isEnabled())
+                    {
+                        flushed = writeBehindBuffer_.write(inodeNumber, acct, path.toString(), _data, _offset, _count);
+
+                        // The data is in the local journal. It is as stable as it would be in iRODS.
+                        if (writeBehindBuffer_.isJournaled())
+                        {
+                            writeOverlay_.update(inodeNumber, end);
+                            return new WriteResult(StabilityLevel.FILE_SYNC, _count);
+                        }
+                    }
+                    else
+                    {
+                        writeHandleCache_.write(inodeNumber, acct, path.toString(), _data, 0, _offset, _count);
+                    }
 
-            final var coordinated = true;
-            IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(path.toString(), OpenFlags.READ_WRITE, coordinated);
+                    writeOverlay_.update(inodeNumber, end);
+
+                    // Data written through a shared write handle is not stable until the
+                    // handle is closed and the replica is finalized.
+                    if (StabilityLevel.UNSTABLE == _stabilityLevel && (!flushed || writeHandleCache_.isEnabled()))
+                    {
+                        return new WriteResult(StabilityLevel.UNSTABLE, _count);
+                    }
+
+                    // The client asked for the data to be on stable storage before replying.
+                    if (!flushed)
+                    {
+                        writeBehindBuffer_.commit(inodeNumber);
+                    }
+
+                    writeHandleCache_.commit(inodeNumber);
+
+                    return new WriteResult(StabilityLevel.FILE_SYNC, _count);
+                }
+
+                IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
+
+                final var coordinated = true;
+                IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(path.toString(), OpenFlags.READ_WRITE, coordinated);
             
-            try (AutoClosedIRODSRandomAccessFile ac = new AutoClosedIRODSRandomAccessFile(file))
-            {
-                file.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
-                file.write(_data, 0, _count);
+                try (AutoClosedIRODSRandomAccessFile ac = new AutoClosedIRODSRandomAccessFile(file))
+                {
+                    file.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
+                    file.write(_data, 0, _count);
+                }
+
+                writeOverlay_.update(inodeNumber, end);
+
                 return new WriteResult(StabilityLevel.FILE_SYNC, _count);
             }
+            finally
+            {
+                // Reads that ran concurrently with the write may have cached data from before
+                // it. Their results are discarded (see InvalidationTracker).
+                invalidateCachedData(inodeNumber);
+            }
         }
         catch (IOException | JargonException e)
         {
@@ -1500,6 +2430,41 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         }
     }
     
+    private void replayJournaledWrite(ServerConfig _config, String _user, String _path, long _offset, byte[] _data)
+        throws IOException
+    {
+        log_.debug("replayJournaledWrite - Writing [{}] bytes to [{}] at offset [{}] as [{}] ...", _data.length, _path, _offset, _user);
+
+        IRODSAccount acct = new IRODSUser(_user, 0, 0, _config, factory_).getAccount();
+
+        try
+        {
+            IRODSFileFactory ff = factory_.getIRODSFileFactory(acct);
+
+            if (!ff.instanceIRODSFile(_path).exists())
+            {
+                throw new FileNotFoundException(_path);
+            }
+
+            final var coordinated = true;
+            IRODSRandomAccessFile file = ff.instanceIRODSRandomAccessFile(_path, OpenFlags.READ_WRITE, coordinated);
+
+            try (AutoClosedIRODSRandomAccessFile ac = new AutoClosedIRODSRandomAccessFile(file))
+            {
+                file.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
+                file.write(_data, 0, _data.length);
+            }
+        }
+        catch (JargonException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            factory_.closeSessionAndEatExceptions();
+        }
+    }
+
     private ObjectType getObjectType(String _path) throws JargonException
     {
         ObjectType type = objectTypeCache_.get(_path);
@@ -1595,8 +2560,8 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
 
     private Stat statPath(Path _path,
                           long _inodeNumber,
-                          CollectionAndDataObjectListingEntry _entry,
-                          List<UserGroup> _groupsContainingUser)
+                          CompactListing.Entry _entry,
+                          Set<String> _groupsContainingUser)
         throws IOException
     {
         log_.debug("""
@@ -1652,7 +2617,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
             stat.setRdev(0);
             stat.setSize(_entry.getDataSize());
             stat.setFileid((int) _inodeNumber);
-            stat.setGeneration(_entry.getModifiedAt().getTime());
+            stat.setGeneration(_entry.getModifyTime());
 
             log_.debug("""
                        statPath - User ID           = {}
@@ -1672,6 +2637,31 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         }
     }
 
+    // Returns the attributes the data object will have once the file is uploaded.
+    private Stat statPendingFile(SmallFileIngest.PendingFile _file)
+    {
+        final long inodeNumber = _file.inodeNumber_;
+        final long modifyTime = _file.getModifyTime();
+
+        Stat stat = new Stat();
+
+        stat.setATime(modifyTime);
+        stat.setCTime(_file.createTime_);
+        stat.setMTime(modifyTime);
+        stat.setMode(Stat.S_IFREG | 0600);
+        stat.setUid(idMapper_.getUidByUserName(_file.acct_.getUserName()));
+        stat.setGid(IRODSIdMapper.getNobodyGid());
+        stat.setNlink(1);
+        stat.setDev(17);
+        stat.setIno((int) inodeNumber);
+        stat.setRdev(0);
+        stat.setSize(_file.getSize());
+        stat.setFileid((int) inodeNumber);
+        stat.setGeneration(modifyTime);
+
+        return stat;
+    }
+
     private void setTime(Stat _stat, ObjStat _objStat)
     {
         if (_objStat.getObjectType() == ObjectType.COLLECTION_HEURISTIC_STANDIN)
@@ -1688,7 +2678,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         }
     }
     
-    private void setTime(Stat _stat, CollectionAndDataObjectListingEntry _entry)
+    private void setTime(Stat _stat, CompactListing.Entry _entry)
     {
         if (_entry.getObjectType() == ObjectType.COLLECTION_HEURISTIC_STANDIN)
         {
@@ -1698,9 +2688,9 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
         }
         else
         {
-            _stat.setATime(_entry.getModifiedAt().getTime());
-            _stat.setCTime(_entry.getCreatedAt().getTime());
-            _stat.setMTime(_entry.getModifiedAt().getTime());
+            _stat.setATime(_entry.getModifyTime());
+            _stat.setCTime(_entry.getCreateTime());
+            _stat.setMTime(_entry.getModifyTime());
         }
     }
 
@@ -1932,8 +2922,8 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     }
     
     private void setStatMode(Stat _stat,
-                             CollectionAndDataObjectListingEntry _entry,
-                             List<UserGroup> _groupsContainingUser,
+                             CompactListing.Entry _entry,
+                             Set<String> _groupsContainingUser,
                              String _userName)
         throws JargonException
     {
@@ -1978,20 +2968,19 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     private Optional<UserFilePermission> getHighestUserPermissionForPath(String _userName, List<UserFilePermission> _perms)
         throws JargonException
     {
-        UserGroupAO ugao = factory_.getUserGroupAO(adminAcct_);
-        return getHighestUserPermissionForPath(_userName, _perms, ugao.findUserGroupsForUser(_userName));
+        return getHighestUserPermissionForPath(_userName, _perms, groupMembershipCache_.getGroupNames(_userName));
     }
     
     private Optional<UserFilePermission> getHighestUserPermissionForPath(String _userName,
                                                                          List<UserFilePermission> _perms,
-                                                                         List<UserGroup> _groupsContainingUser)
+                                                                         Set<String> _groupsContainingUser)
         throws JargonException
     {
         // @formatter:off
         // Get the highest level of permissions for the user among the groups.
         Optional<UserFilePermission> highestGroupPerm = _perms.stream()
             // Filter the incoming list "_perms" to groups the user is a member of.
-            .filter(p -> _groupsContainingUser.stream().anyMatch(ug -> p.getUserName().equals(ug.getUserGroupName())))
+            .filter(p -> _groupsContainingUser.contains(p.getUserName()))
             // Return the object holding the highest level of permissions.
             .max((lhs, rhs) -> Integer.compare(lhs.getFilePermissionEnum().ordinal(),
                                                rhs.getFilePermissionEnum().ordinal()));
@@ -2051,7 +3040,7 @@ public class IRODSVirtualFileSystem implements VirtualFileSystem, AclCheckable
     private int calcMode(String _userName,
                          ObjectType _objType,
                          List<UserFilePermission> _perms,
-                         List<UserGroup> _groupsContainingUser)
+                         Set<String> _groupsContainingUser)
         throws JargonException
     {
         int mode = 0100;
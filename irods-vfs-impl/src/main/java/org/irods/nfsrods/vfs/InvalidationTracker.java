@@ -0,0 +1,34 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Detects whether a data object was invalidated while its contents were being
+// fetched. A cache takes a token before fetching and only keeps the result if the
+// token is still current afterwards. Data objects share counters (stripes), so an
+// invalidation may occasionally cause an unrelated fetch to not be cached.
+class InvalidationTracker
+{
+    private static final int STRIPES = 64;
+
+    private final AtomicLongArray counters_ = new AtomicLongArray(STRIPES);
+
+    long token(long _dataId)
+    {
+        return counters_.get(stripe(_dataId));
+    }
+
+    boolean isCurrent(long _dataId, long _token)
+    {
+        return token(_dataId) == _token;
+    }
+
+    void invalidate(long _dataId)
+    {
+        counters_.incrementAndGet(stripe(_dataId));
+    }
+
+    private static int stripe(long _dataId)
+    {
+        return (int) Math.floorMod(_dataId, (long) STRIPES);
+    }
+}
@@ -0,0 +1,141 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+import org.irods.jargon.core.query.IRODSQueryResultRow;
+import org.irods.jargon.core.query.JargonQueryException;
+import org.irods.jargon.core.query.SpecificQuery;
+import org.irods.jargon.core.query.SpecificQueryResultSet;
+
+// Lists a collection through a registered specific query (see the README) that returns
+// the collections and the data objects of a collection, along with their permissions,
+// one row per entry. A page of the listing then costs a single round trip, instead of a
+// GenQuery for each kind of entry returning a row per permission (and replica).
+//
+// The query takes the collection path twice, the offset and the maximum number of rows.
+// Columns:
+//
+//   id | 'C' or 'D' | collection path or data object name | size | owner
+//   | create time | modify time | permissions
+//
+// where permissions is a ';' separated list of "user:zone:user id:user type:access type".
+//
+// If the query is not registered (or fails before anything was listed), it is disabled
+// and listings go through Jargon's listing calls.
+class ListingSpecificQuery
+{
+    private static final Logger log_ = LogManager.getLogger(ListingSpecificQuery.class);
+
+    static final int ROWS_PER_PAGE = 1000;
+
+    private final IRODSAccessObjectFactory factory_;
+    private final String alias_;
+    private volatile boolean enabled_;
+
+    ListingSpecificQuery(IRODSAccessObjectFactory _factory, String _alias)
+    {
+        factory_ = _factory;
+        alias_ = _alias;
+        enabled_ = true;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled_;
+    }
+
+    void disable(Exception _e)
+    {
+        if (enabled_)
+        {
+            enabled_ = false;
+            log_.warn("disable - Specific query [{}] failed. Falling back to GenQuery listings: {}", alias_, _e.getMessage());
+        }
+    }
+
+    // Returns the entries of the collection starting at the offset. The last entry of
+    // the last page is marked as such.
+    List<CollectionAndDataObjectListingEntry> fetchPage(IRODSAccount _acct, String _path, int _offset) throws JargonException
+    {
+        List<String> args = List.of(_path, _path, String.valueOf(_offset), String.valueOf(ROWS_PER_PAGE));
+        SpecificQuery query = SpecificQuery.instanceArguments(alias_, args, 0, _acct.getZone());
+        SpecificQueryResultSet resultSet;
+
+        try
+        {
+            resultSet = factory_.getSpecificQueryAO(_acct).executeSpecificQueryUsingAlias(query, ROWS_PER_PAGE, _acct.getZone());
+        }
+        catch (JargonQueryException e)
+        {
+            throw new JargonException(e);
+        }
+
+        List<CollectionAndDataObjectListingEntry> entries = new ArrayList<>(resultSet.getResults().size());
+
+        for (IRODSQueryResultRow row : resultSet.getResults())
+        {
+            entries.add(toEntry(row));
+        }
+
+        if (!entries.isEmpty() && entries.size() < ROWS_PER_PAGE)
+        {
+            entries.get(entries.size() - 1).setLastResult(true);
+        }
+
+        return entries;
+    }
+
+    private static CollectionAndDataObjectListingEntry toEntry(IRODSQueryResultRow _row) throws JargonException
+    {
+        CollectionAndDataObjectListingEntry entry = new CollectionAndDataObjectListingEntry();
+
+        entry.setId(Integer.parseInt(_row.getColumn(0)));
+        entry.setObjectType("C".equals(_row.getColumn(1)) ? ObjectType.COLLECTION : ObjectType.DATA_OBJECT);
+        entry.setPathOrName(_row.getColumn(2));
+        entry.setDataSize(Long.parseLong(_row.getColumn(3)));
+        entry.setOwnerName(_row.getColumn(4));
+        entry.setCreatedAt(toDate(_row.getColumn(5)));
+        entry.setModifiedAt(toDate(_row.getColumn(6)));
+
+        List<UserFilePermission> perms = new ArrayList<>();
+
+        for (String perm : _row.getColumn(7).split(";"))
+        {
+            String[] fields = perm.split(":");
+
+            if (fields.length != 5)
+            {
+                continue;
+            }
+
+            // @formatter:off
+            perms.add(new UserFilePermission(fields[0],
+                                             fields[2],
+                                             FilePermissionEnum.valueOf(Integer.parseInt(fields[4])),
+                                             UserTypeEnum.findTypeByString(fields[3]),
+                                             fields[1]));
+            // @formatter:on
+        }
+
+        entry.setUserFilePermission(perms);
+
+        return entry;
+    }
+
+    private static Date toDate(String _timestamp)
+    {
+        return new Date(Long.parseLong(_timestamp.trim()) * 1000);
+    }
+}
@@ -0,0 +1,60 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Versions the listings of collections. A version only changes when the contents of the
+// collection may have changed, so a listing taken again after its cache entry expired
+// (or after a restart) gets the version of the one it replaces, and clients keep their
+// cached directory contents.
+//
+// The version is the collection's mtime. Because iRODS timestamps are in seconds, a change
+// made by NFSRODS may not move the mtime, so each such change bumps the version by one.
+// A version is never handed out again for different contents, as long as the collection
+// is still tracked.
+class ListingVersions
+{
+    private static final int MAX_TRACKED_COLLECTIONS = 65536;
+
+    private record Version(long collectionLastModified, long version) {}
+
+    private final Map<String, Version> versions_;
+
+    ListingVersions()
+    {
+        versions_ = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Version> _eldest)
+            {
+                return size() > MAX_TRACKED_COLLECTIONS;
+            }
+        };
+    }
+
+    // Returns the version of a new listing of the collection.
+    synchronized long get(String _path, Date _collectionLastModified)
+    {
+        final long mtime = _collectionLastModified.getTime();
+        Version last = versions_.get(_path);
+        long version = mtime;
+
+        if (null != last)
+        {
+            version = (mtime == last.collectionLastModified()) ? last.version() : Math.max(mtime, last.version() + 1);
+        }
+
+        versions_.put(_path, new Version(mtime, version));
+
+        return version;
+    }
+
+    // Called when NFSRODS changes the collection.
+    synchronized void bump(String _path)
+    {
+        versions_.computeIfPresent(_path, (k, v) -> new Version(v.collectionLastModified(), v.version() + 1));
+    }
+}
@@ -0,0 +1,92 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// A minimal registry of named counters and gauges. If a reporting interval is
+// provided, a snapshot of every metric is written to the log at INFO level.
+class Metrics
+{
+    private static final Logger log_ = LogManager.getLogger(Metrics.class);
+
+    private final Map<String, LongAdder> counters_;
+    private final Map<String, LongSupplier> gauges_;
+    private ScheduledExecutorService scheduler_;
+
+    Metrics(int _reportingIntervalInMillis)
+    {
+        counters_ = new ConcurrentSkipListMap<>();
+        gauges_ = new ConcurrentSkipListMap<>();
+
+        if (_reportingIntervalInMillis > 0)
+        {
+            scheduler_ = Executors.newSingleThreadScheduledExecutor();
+            scheduler_.scheduleAtFixedRate(() -> log_.info("metrics - {}", this),
+                                           _reportingIntervalInMillis,
+                                           _reportingIntervalInMillis,
+                                           TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void increment(String _name)
+    {
+        counter(_name).increment();
+    }
+
+    void add(String _name, long _value)
+    {
+        counter(_name).add(_value);
+    }
+
+    void gauge(String _name, LongSupplier _supplier)
+    {
+        gauges_.put(_name, _supplier);
+    }
+
+    long get(String _name)
+    {
+        LongSupplier gauge = gauges_.get(_name);
+
+        if (null != gauge)
+        {
+            return gauge.getAsLong();
+        }
+
+        LongAdder counter = counters_.get(_name);
+
+        return (null != counter) ? counter.sum() : 0;
+    }
+
+    void close()
+    {
+        if (null != scheduler_)
+        {
+            scheduler_.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringJoiner sj = new StringJoiner(", ", "{", "}");
+
+        counters_.forEach((name, counter) -> sj.add(name + "=" + counter.sum()));
+        gauges_.forEach((name, gauge) -> sj.add(name + "=" + gauge.getAsLong()));
+
+        return sj.toString();
+    }
+
+    private LongAdder counter(String _name)
+    {
+        return counters_.computeIfAbsent(_name, k -> new LongAdder());
+    }
+}
@@ -0,0 +1,52 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dcache.nfs.vfs.DirectoryEntry;
+import org.dcache.nfs.vfs.DirectoryStream;
+
+// A READDIR reply holding the entries following a cookie, up to as many as a single
+// reply can carry. NFS4J reports the end of the directory once it runs out of entries,
+// so the page must never be smaller than what the client asked for. Continuations only
+// build the entries after their cookie instead of the whole directory.
+//
+// Cookies are consecutive. The entry following the one with cookie "c" has cookie "c + 1".
+class PagedDirectoryStream extends DirectoryStream
+{
+    // The largest READDIR reply NFS4J sends is 1 MiB and the smallest encoded entry
+    // (cookie, name, and empty attribute list) takes 28 bytes.
+    static final int MAX_ENTRIES_PER_PAGE = (1 << 20) / 28 + 1;
+
+    interface EntrySource
+    {
+        // Returns the entry with the cookie, or null if the directory has no more entries.
+        DirectoryEntry get(long _cookie) throws IOException;
+    }
+
+    // Reads the entries following the one with the cookie.
+    PagedDirectoryStream(byte[] _verifier, EntrySource _source, long _cookie) throws IOException
+    {
+        super(_verifier, readPage(_source, _cookie));
+    }
+
+    private static List<DirectoryEntry> readPage(EntrySource _source, long _cookie) throws IOException
+    {
+        List<DirectoryEntry> entries = new ArrayList<>();
+
+        for (long cookie = _cookie + 1; entries.size() < MAX_ENTRIES_PER_PAGE; ++cookie)
+        {
+            DirectoryEntry entry = _source.get(cookie);
+
+            if (null == entry)
+            {
+                break;
+            }
+
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+}
@@ -0,0 +1,413 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Detects sequential access to a data object and prefetches the ranges following
+// the most recent read into pooled buffers. Later reads are served from those
+// buffers instead of waiting on a round trip to iRODS.
+//
+// The prefetch window starts at the configured initial size once a stream looks
+// sequential, doubles every time a read is served from prefetched buffers, and
+// collapses to zero (dropping all buffers) as soon as the access pattern becomes random.
+class ReadAheadEngine
+{
+    private static final Logger log_ = LogManager.getLogger(ReadAheadEngine.class);
+
+    private static final long STREAM_IDLE_TIMEOUT_IN_MILLIS = 30000;
+
+    // Reads a range of a data object from iRODS. Implementations must be safe to
+    // call from any thread.
+    interface Source
+    {
+        int read(byte[] _buffer, int _bufferOffset, long _offset, int _count) throws IOException;
+    }
+
+    private final Metrics metrics_;
+    private final BufferPool bufferPool_;
+    private final int bufferSize_;
+    private final int initialWindowSize_;
+    private final int maxWindowSize_;
+    private final Map<Long, Stream> streams_;
+    private ExecutorService executor_;
+    private ScheduledExecutorService scheduler_;
+
+    ReadAheadEngine(int _bufferSize, int _initialWindowSize, int _maxWindowSize, long _maxMemory, Metrics _metrics)
+    {
+        metrics_ = _metrics;
+        bufferSize_ = _bufferSize;
+        initialWindowSize_ = Math.min(_initialWindowSize, _maxWindowSize);
+        maxWindowSize_ = _maxWindowSize;
+        bufferPool_ = new BufferPool(_bufferSize, (_bufferSize > 0) ? (int) Math.min(Integer.MAX_VALUE, _maxMemory / _bufferSize) : 0);
+        streams_ = new ConcurrentHashMap<>();
+
+        metrics_.gauge("read_ahead.buffers_in_use", bufferPool_::getBuffersInUse);
+
+        if (isEnabled())
+        {
+            executor_ = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+            scheduler_ = Executors.newSingleThreadScheduledExecutor();
+            scheduler_.scheduleAtFixedRate(this::evictIdleStreams,
+                                           STREAM_IDLE_TIMEOUT_IN_MILLIS,
+                                           STREAM_IDLE_TIMEOUT_IN_MILLIS,
+                                           TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return bufferSize_ > 0 && maxWindowSize_ > 0 && initialWindowSize_ > 0;
+    }
+
+    int read(long _inodeNumber, Source _source, byte[] _buffer, int _bufferOffset, long _offset, int _count)
+        throws IOException
+    {
+        Stream stream = streams_.computeIfAbsent(_inodeNumber, k -> new Stream());
+        List<Chunk> chunks = stream.onRead(_offset, _count);
+
+        if (chunks.isEmpty())
+        {
+            metrics_.increment("read_ahead.misses");
+
+            int bytesRead = _source.read(_buffer, _bufferOffset, _offset, _count);
+            stream.prefetch(_source, _offset, _count);
+
+            return bytesRead;
+        }
+
+        metrics_.increment("read_ahead.hits");
+
+        try
+        {
+            int bytesCopied = 0;
+
+            for (Chunk c : chunks)
+            {
+                long chunkOffset = c.index_ * bufferSize_;
+                int chunkLength = c.awaitLength();
+
+                // Copy the portion of the chunk that overlaps the requested range.
+                long srcPos = Math.max(_offset + bytesCopied, chunkOffset);
+                long end = Math.min(_offset + _count, chunkOffset + chunkLength);
+
+                if (srcPos >= end)
+                {
+                    // End of the data object.
+                    break;
+                }
+
+                int length = (int) (end - srcPos);
+                System.arraycopy(c.buffer_, (int) (srcPos - chunkOffset), _buffer, _bufferOffset + bytesCopied, length);
+                bytesCopied += length;
+
+                if (chunkLength < bufferSize_)
+                {
+                    break;
+                }
+            }
+
+            stream.onHit();
+            stream.prefetch(_source, _offset, _count);
+
+            return bytesCopied;
+        }
+        catch (IOException e)
+        {
+            // The prefetch failed. Do not trust any of the buffered data for this inode.
+            log_.debug("read - Prefetch failed, reading directly from iRODS: {}", e.getMessage());
+            invalidate(_inodeNumber);
+            return _source.read(_buffer, _bufferOffset, _offset, _count);
+        }
+        finally
+        {
+            chunks.forEach(Chunk::release);
+        }
+    }
+
+    // Drops all prefetched data for the inode. This must be called whenever the
+    // contents or location of the data object change (e.g. write, remove, rename).
+    void invalidate(long _inodeNumber)
+    {
+        Stream stream = streams_.remove(_inodeNumber);
+
+        if (null != stream)
+        {
+            stream.reset();
+        }
+    }
+
+    void close()
+    {
+        if (null != scheduler_)
+        {
+            scheduler_.shutdownNow();
+        }
+
+        if (null != executor_)
+        {
+            executor_.shutdownNow();
+        }
+
+        streams_.values().forEach(Stream::reset);
+        streams_.clear();
+    }
+
+    private void evictIdleStreams()
+    {
+        final long now = System.currentTimeMillis();
+
+        streams_.forEach((inodeNumber, stream) -> {
+            if (now - stream.lastAccessTime_ >= STREAM_IDLE_TIMEOUT_IN_MILLIS && streams_.remove(inodeNumber, stream))
+            {
+                log_.debug("evictIdleStreams - Dropping read-ahead state for inode [{}] ...", inodeNumber);
+                stream.reset();
+            }
+        });
+    }
+
+    private final class Stream
+    {
+        private final TreeMap<Long, Chunk> chunks_ = new TreeMap<>();
+        private long nextOffset_ = -1;
+        private long nextPrefetchIndex_;
+        private long eofIndex_ = Long.MAX_VALUE;
+        private int windowSize_;
+        private boolean retired_;
+        private volatile long lastAccessTime_ = System.currentTimeMillis();
+
+        // Updates the access pattern and returns the prefetched chunks covering
+        // the requested range. The returned chunks have been retained for the caller.
+        // An empty list is returned if any part of the range has not been prefetched.
+        synchronized List<Chunk> onRead(long _offset, int _count)
+        {
+            lastAccessTime_ = System.currentTimeMillis();
+
+            // NFS clients issue several READs in parallel, so requests for a sequential
+            // stream may arrive slightly out of order.
+            final boolean sequential = nextOffset_ >= 0 &&
+                                       Math.abs(_offset - nextOffset_) <= Math.max(windowSize_, bufferSize_);
+
+            if (sequential)
+            {
+                if (0 == windowSize_)
+                {
+                    windowSize_ = initialWindowSize_;
+                }
+
+                nextOffset_ = Math.max(nextOffset_, _offset + _count);
+            }
+            else
+            {
+                if (nextOffset_ >= 0)
+                {
+                    log_.debug("onRead - Random access detected. Collapsing read-ahead window.");
+                }
+
+                nextOffset_ = _offset + _count;
+                windowSize_ = 0;
+                discardChunks();
+            }
+
+            // Release chunks that lie entirely behind the read position.
+            while (!chunks_.isEmpty() && (chunks_.firstKey() + 2) * bufferSize_ <= _offset)
+            {
+                chunks_.pollFirstEntry().getValue().release();
+            }
+
+            List<Chunk> covering = new ArrayList<>();
+            final long lastIndex = (_offset + Math.max(_count, 1) - 1) / bufferSize_;
+
+            for (long i = _offset / bufferSize_; i <= lastIndex && i <= eofIndex_; ++i)
+            {
+                Chunk c = chunks_.get(i);
+
+                if (null == c)
+                {
+                    return List.of();
+                }
+
+                covering.add(c);
+            }
+
+            covering.forEach(Chunk::retain);
+
+            return covering;
+        }
+
+        synchronized void onHit()
+        {
+            if (retired_)
+            {
+                return;
+            }
+
+            windowSize_ = Math.min(Math.max(windowSize_, initialWindowSize_) * 2, maxWindowSize_);
+        }
+
+        synchronized void prefetch(Source _source, long _offset, int _count)
+        {
+            // A retired stream is no longer in the map, so nothing would release its chunks.
+            if (retired_ || 0 == windowSize_)
+            {
+                return;
+            }
+
+            final long firstIndex = Math.max(nextPrefetchIndex_, (_offset + _count) / bufferSize_);
+            final long lastIndex = Math.min(eofIndex_, (_offset + _count + windowSize_ - 1) / bufferSize_);
+
+            for (long i = firstIndex; i <= lastIndex; ++i)
+            {
+                if (chunks_.containsKey(i))
+                {
+                    continue;
+                }
+
+                byte[] buffer = bufferPool_.acquire();
+
+                if (null == buffer)
+                {
+                    metrics_.increment("read_ahead.buffer_pool_exhausted");
+                    break;
+                }
+
+                Chunk c = new Chunk(i, buffer);
+
+                try
+                {
+                    executor_.execute(() -> fetch(_source, c));
+                }
+                catch (RejectedExecutionException e)
+                {
+                    bufferPool_.release(buffer);
+                    break;
+                }
+
+                chunks_.put(i, c);
+                nextPrefetchIndex_ = i + 1;
+            }
+        }
+
+        // Drops the prefetched data. Called once the stream has been removed from the map.
+        // Readers that still hold the stream must not prefetch into it afterwards.
+        synchronized void reset()
+        {
+            retired_ = true;
+            nextOffset_ = -1;
+            windowSize_ = 0;
+            discardChunks();
+        }
+
+        private void fetch(Source _source, Chunk _chunk)
+        {
+            try
+            {
+                final long offset = _chunk.index_ * bufferSize_;
+                int total = 0;
+
+                while (total < bufferSize_)
+                {
+                    int bytesRead = _source.read(_chunk.buffer_, total, offset + total, bufferSize_ - total);
+
+                    if (bytesRead <= 0)
+                    {
+                        break;
+                    }
+
+                    total += bytesRead;
+                }
+
+                if (total < bufferSize_)
+                {
+                    onEndOfFile(_chunk.index_);
+                }
+
+                metrics_.add("read_ahead.prefetched_bytes", total);
+                _chunk.length_.complete(total);
+            }
+            catch (Exception e)
+            {
+                log_.error("fetch - {}", e.getMessage());
+                _chunk.length_.completeExceptionally(e);
+            }
+            finally
+            {
+                _chunk.release();
+            }
+        }
+
+        private synchronized void onEndOfFile(long _chunkIndex)
+        {
+            eofIndex_ = Math.min(eofIndex_, _chunkIndex);
+        }
+
+        private void discardChunks()
+        {
+            chunks_.values().forEach(Chunk::release);
+            chunks_.clear();
+            nextPrefetchIndex_ = 0;
+            eofIndex_ = Long.MAX_VALUE;
+        }
+    }
+
+    // A prefetched range of a data object. A chunk's buffer is returned to the pool
+    // once the stream, the fetch task, and every reader have released it.
+    private final class Chunk
+    {
+        private final long index_;
+        private final byte[] buffer_;
+        private final CompletableFuture<Integer> length_;
+        private int refCount_;
+
+        Chunk(long _index, byte[] _buffer)
+        {
+            index_ = _index;
+            buffer_ = _buffer;
+            length_ = new CompletableFuture<>();
+            refCount_ = 2; // The stream and the fetch task.
+        }
+
+        synchronized void retain()
+        {
+            ++refCount_;
+        }
+
+        synchronized void release()
+        {
+            if (--refCount_ == 0)
+            {
+                bufferPool_.release(buffer_);
+            }
+        }
+
+        int awaitLength() throws IOException
+        {
+            try
+            {
+                return length_.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
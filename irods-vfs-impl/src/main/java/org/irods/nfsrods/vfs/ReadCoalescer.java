@@ -0,0 +1,201 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Coalesces concurrent reads of the same range of a data object. The first reader
+// of a range (the leader) fetches it from iRODS. Readers arriving while the fetch
+// is in flight whose range is covered by it (the followers) wait for the fetch and
+// copy the result instead of issuing their own request.
+//
+// The upper layers (block cache, read-ahead) fetch aligned, fixed-size ranges, so
+// concurrent readers of a hot data object usually request identical ranges.
+class ReadCoalescer
+{
+    private final Metrics metrics_;
+    private final Map<Long, List<Flight>> flights_;
+
+    ReadCoalescer(Metrics _metrics)
+    {
+        metrics_ = _metrics;
+        flights_ = new ConcurrentHashMap<>();
+
+        metrics_.gauge("read_coalescer.data_objects_in_flight", flights_::size);
+    }
+
+    int read(long _inodeNumber, ReadAheadEngine.Source _source, byte[] _buffer, int _bufferOffset, long _offset, int _count)
+        throws IOException
+    {
+        final Flight flight = new Flight(_buffer, _bufferOffset, _offset, _count);
+        final Flight[] leader = new Flight[1];
+
+        flights_.compute(_inodeNumber, (k, flights) -> {
+            if (null != flights)
+            {
+                for (Flight f : flights)
+                {
+                    if (f.covers(_offset, _count))
+                    {
+                        f.join();
+                        leader[0] = f;
+                        return flights;
+                    }
+                }
+            }
+            else
+            {
+                flights = new ArrayList<>(2);
+            }
+
+            flights.add(flight);
+
+            return flights;
+        });
+
+        if (null != leader[0])
+        {
+            metrics_.increment("read_coalescer.coalesced_reads");
+            return leader[0].copyTo(_buffer, _bufferOffset, _offset, _count);
+        }
+
+        int bytesRead = 0;
+        IOException error = null;
+
+        try
+        {
+            bytesRead = _source.read(_buffer, _bufferOffset, _offset, _count);
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+        finally
+        {
+            // No reader may join the flight once it has been removed from the table.
+            flights_.computeIfPresent(_inodeNumber, (k, flights) -> {
+                flights.remove(flight);
+                return flights.isEmpty() ? null : flights;
+            });
+        }
+
+        flight.complete(bytesRead, error);
+
+        if (null != error)
+        {
+            throw error;
+        }
+
+        return bytesRead;
+    }
+
+    // Prevents readers from joining fetches of the data object that are already in
+    // flight. Those fetches may return data from before the change.
+    void invalidate(long _inodeNumber)
+    {
+        flights_.remove(_inodeNumber);
+    }
+
+    // A range being fetched into the leader's buffer. The leader does not return
+    // (and give up its buffer) until every follower has copied the result.
+    private static final class Flight
+    {
+        private final byte[] buffer_;
+        private final int bufferOffset_;
+        private final long offset_;
+        private final int count_;
+        private int followers_;
+        private boolean done_;
+        private int bytesRead_;
+        private IOException error_;
+
+        Flight(byte[] _buffer, int _bufferOffset, long _offset, int _count)
+        {
+            buffer_ = _buffer;
+            bufferOffset_ = _bufferOffset;
+            offset_ = _offset;
+            count_ = _count;
+        }
+
+        boolean covers(long _offset, int _count)
+        {
+            return _offset >= offset_ && _offset + _count <= offset_ + count_;
+        }
+
+        synchronized void join()
+        {
+            ++followers_;
+        }
+
+        synchronized void complete(int _bytesRead, IOException _error)
+        {
+            bytesRead_ = _bytesRead;
+            error_ = _error;
+            done_ = true;
+            notifyAll();
+
+            boolean interrupted = false;
+
+            while (followers_ > 0)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized int copyTo(byte[] _buffer, int _bufferOffset, long _offset, int _count) throws IOException
+        {
+            boolean interrupted = false;
+
+            try
+            {
+                while (!done_)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+
+                if (null != error_)
+                {
+                    throw new IOException(error_);
+                }
+
+                final int skip = (int) (_offset - offset_);
+                final int length = Math.max(0, Math.min(_count, bytesRead_ - skip));
+
+                System.arraycopy(buffer_, bufferOffset_ + skip, _buffer, _bufferOffset, length);
+
+                return (bytesRead_ < 0 && 0 == length) ? bytesRead_ : length;
+            }
+            finally
+            {
+                --followers_;
+                notifyAll();
+
+                if (interrupted)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.FileIOOperations;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+
+// Keeps data objects open for reading between NFS READ requests.
+//
+// Jargon binds connections to the thread that created them. An open iRODS file
+// descriptor is only valid on the connection it was opened on, therefore each handle
+// is assigned to one of a fixed number of threads (lanes), which opens, reads, and
+// closes the data object. NFS worker threads hand their reads to that thread and wait
+// for the result. The handles of a user on the same lane share the lane's connection,
+// which is closed once the last of them is. The number of threads and connections held
+// by the cache is therefore bounded by the number of lanes, not the number of handles.
+//
+// A data object may be read through several handles (streams) at once. Each stripe
+// of the data object maps to one of the streams, so concurrent reads of different
+// stripes (e.g. read-ahead) proceed in parallel, and a single read spanning several
+// stripes is split into pieces that are fetched concurrently and reassembled.
+class ReadHandleCache
+{
+    private static final Logger log_ = LogManager.getLogger(ReadHandleCache.class);
+
+    private final IRODSAccessObjectFactory factory_;
+    private final Metrics metrics_;
+    private final int maxHandles_;
+    private final long idleTimeoutInMillis_;
+    private final int streamsPerDataObject_;
+    private final int stripeSize_;
+    private final Map<Key, ReadHandle> handles_;
+    private final AtomicInteger nextLane_;
+    private Lane[] lanes_;
+    private ScheduledExecutorService scheduler_;
+    private ExecutorService pieceExecutor_;
+
+    ReadHandleCache(IRODSAccessObjectFactory _factory,
+                    int _maxHandles,
+                    int _idleTimeoutInMillis,
+                    int _threads,
+                    int _streamsPerDataObject,
+                    int _stripeSize,
+                    Metrics _metrics)
+    {
+        factory_ = _factory;
+        metrics_ = _metrics;
+        maxHandles_ = _maxHandles;
+        idleTimeoutInMillis_ = _idleTimeoutInMillis;
+        streamsPerDataObject_ = Math.max(1, _streamsPerDataObject);
+        stripeSize_ = _stripeSize;
+        handles_ = new ConcurrentHashMap<>();
+        nextLane_ = new AtomicInteger();
+
+        metrics_.gauge("read_handle_cache.open_handles", () -> handles_.size());
+
+        if (isEnabled())
+        {
+            final long period = Math.max(1, idleTimeoutInMillis_ / 2);
+
+            scheduler_ = Executors.newSingleThreadScheduledExecutor();
+            scheduler_.scheduleAtFixedRate(this::evictIdleHandles, period, period, TimeUnit.MILLISECONDS);
+
+            lanes_ = new Lane[Math.max(1, _threads)];
+
+            for (int i = 0; i < lanes_.length; ++i)
+            {
+                lanes_[i] = new Lane();
+            }
+
+            // More pieces in flight than there are lanes would only queue on the lanes.
+            // When every piece thread is busy, the reader fetches its pieces itself.
+            if (isParallelEnabled())
+            {
+                // @formatter:off
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(lanes_.length,
+                                                                     lanes_.length,
+                                                                     60,
+                                                                     TimeUnit.SECONDS,
+                                                                     new ArrayBlockingQueue<>(lanes_.length),
+                                                                     new ThreadPoolExecutor.CallerRunsPolicy());
+                // @formatter:on
+                executor.allowCoreThreadTimeOut(true);
+                pieceExecutor_ = executor;
+            }
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return maxHandles_ > 0;
+    }
+
+    private boolean isParallelEnabled()
+    {
+        return streamsPerDataObject_ > 1 && stripeSize_ > 0;
+    }
+
+    int read(long _inodeNumber,
+             int _uid,
+             IRODSAccount _acct,
+             String _path,
+             byte[] _buffer,
+             int _bufferOffset,
+             long _offset,
+             int _count)
+        throws IOException
+    {
+        if (isParallelEnabled() && _count > stripeSize_)
+        {
+            return readParallel(_inodeNumber, _uid, _acct, _path, _buffer, _bufferOffset, _offset, _count);
+        }
+
+        return readStream(streamOf(_offset), _inodeNumber, _uid, _acct, _path, _buffer, _bufferOffset, _offset, _count);
+    }
+
+    // Splits the range at stripe boundaries and reads the pieces concurrently,
+    // each through the stream its stripe maps to.
+    private int readParallel(long _inodeNumber,
+                             int _uid,
+                             IRODSAccount _acct,
+                             String _path,
+                             byte[] _buffer,
+                             int _bufferOffset,
+                             long _offset,
+                             int _count)
+        throws IOException
+    {
+        List<Integer> pieceLengths = new ArrayList<>();
+        List<CompletableFuture<Integer>> pieces = new ArrayList<>();
+
+        for (int pos = 0; pos < _count;)
+        {
+            final long offset = _offset + pos;
+            final int bufferOffset = _bufferOffset + pos;
+            final int length = (int) Math.min(_count - pos, stripeSize_ - (offset % stripeSize_));
+
+            pieceLengths.add(length);
+            pieces.add(CompletableFuture.supplyAsync(() -> {
+                try
+                {
+                    return readStream(streamOf(offset), _inodeNumber, _uid, _acct, _path, _buffer, bufferOffset, offset, length);
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }, pieceExecutor_));
+
+            pos += length;
+        }
+
+        metrics_.increment("read_handle_cache.parallel_reads");
+
+        int bytesRead = 0;
+        boolean endOfData = false;
+        IOException error = null;
+
+        // Every piece must finish before returning since they all write into the caller's buffer.
+        for (int i = 0; i < pieces.size(); ++i)
+        {
+            try
+            {
+                final int n = pieces.get(i).join();
+
+                if (!endOfData)
+                {
+                    bytesRead += Math.max(0, n);
+
+                    // A short piece marks the end of the data object.
+                    endOfData = n < pieceLengths.get(i);
+                }
+            }
+            catch (CompletionException e)
+            {
+                if (null == error)
+                {
+                    error = (e.getCause() instanceof UncheckedIOException uioe) ? uioe.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+
+        if (null != error)
+        {
+            throw error;
+        }
+
+        return bytesRead;
+    }
+
+    private int streamOf(long _offset)
+    {
+        return isParallelEnabled() ? (int) ((_offset / stripeSize_) % streamsPerDataObject_) : 0;
+    }
+
+    private int readStream(int _stream,
+                           long _inodeNumber,
+                           int _uid,
+                           IRODSAccount _acct,
+                           String _path,
+                           byte[] _buffer,
+                           int _bufferOffset,
+                           long _offset,
+                           int _count)
+        throws IOException
+    {
+        final Key key = new Key(_inodeNumber, _uid, _stream);
+
+        // A handle may be closed by another thread between the lookup and the read.
+        // When that happens, the read is retried once against a freshly opened handle.
+        for (int attempt = 0;; ++attempt)
+        {
+            ReadHandle handle = acquire(key, _acct, _path);
+
+            try
+            {
+                return handle.read(_buffer, _bufferOffset, _offset, _count);
+            }
+            catch (RejectedExecutionException e)
+            {
+                if (attempt > 0)
+                {
+                    throw new IOException("Read handle closed while reading [" + _path + "]", e);
+                }
+            }
+            catch (IOException e)
+            {
+                // The state of the iRODS file descriptor is unknown at this point, so
+                // do not allow later reads to reuse it.
+                evict(key, handle);
+                throw e;
+            }
+        }
+    }
+
+    // Closes all handles referencing the inode. This must be called whenever the
+    // contents or location of the data object change (e.g. write, remove, rename).
+    void invalidate(long _inodeNumber)
+    {
+        handles_.forEach((key, handle) -> {
+            if (key.inodeNumber() == _inodeNumber && handles_.remove(key, handle))
+            {
+                log_.debug("invalidate - Closing read handle for [{}] ...", handle.path_);
+                metrics_.increment("read_handle_cache.invalidations");
+                handle.close();
+            }
+        });
+    }
+
+    void close()
+    {
+        if (null != scheduler_)
+        {
+            scheduler_.shutdownNow();
+        }
+
+        if (null != pieceExecutor_)
+        {
+            pieceExecutor_.shutdownNow();
+        }
+
+        handles_.forEach((key, handle) -> {
+            if (handles_.remove(key, handle))
+            {
+                handle.close();
+            }
+        });
+
+        if (null != lanes_)
+        {
+            for (Lane lane : lanes_)
+            {
+                lane.executor_.shutdown();
+            }
+        }
+    }
+
+    private ReadHandle acquire(Key _key, IRODSAccount _acct, String _path)
+    {
+        ReadHandle handle = handles_.get(_key);
+
+        if (null != handle && handle.path_.equals(_path))
+        {
+            metrics_.increment("read_handle_cache.hits");
+            handle.touch();
+            return handle;
+        }
+
+        metrics_.increment("read_handle_cache.misses");
+
+        if (null != handle)
+        {
+            // The inode has been mapped to a different path since the handle was opened.
+            evict(_key, handle);
+        }
+
+        if (handles_.size() >= maxHandles_)
+        {
+            evictLeastRecentlyUsedHandle();
+        }
+
+        // Handles are spread over the lanes in turn, so the streams of a data object
+        // (which are opened one after the other) end up on different lanes.
+        Lane lane = lanes_[Math.floorMod(nextLane_.getAndIncrement(), lanes_.length)];
+        ReadHandle newHandle = new ReadHandle(lane, _acct, _path);
+        handle = handles_.putIfAbsent(_key, newHandle);
+
+        if (null != handle)
+        {
+            // Another thread won the race. The new handle has not opened anything yet.
+            newHandle.close();
+            handle.touch();
+            return handle;
+        }
+
+        return newHandle;
+    }
+
+    private void evict(Key _key, ReadHandle _handle)
+    {
+        if (handles_.remove(_key, _handle))
+        {
+            metrics_.increment("read_handle_cache.evictions");
+            _handle.close();
+        }
+    }
+
+    private void evictLeastRecentlyUsedHandle()
+    {
+        Optional<Map.Entry<Key, ReadHandle>> lru = handles_.entrySet().stream()
+            .min(Comparator.comparingLong(e -> e.getValue().lastAccessTime_));
+
+        lru.ifPresent(e -> {
+            log_.debug("evictLeastRecentlyUsedHandle - Evicting read handle for [{}] ...", e.getValue().path_);
+            evict(e.getKey(), e.getValue());
+        });
+    }
+
+    private void evictIdleHandles()
+    {
+        final long now = System.currentTimeMillis();
+
+        handles_.forEach((key, handle) -> {
+            if (now - handle.lastAccessTime_ >= idleTimeoutInMillis_)
+            {
+                log_.debug("evictIdleHandles - Evicting idle read handle for [{}] ...", handle.path_);
+                evict(key, handle);
+            }
+        });
+    }
+
+    private record Key(long inodeNumber, int uid, int stream) {}
+
+    // A thread shared by the handles assigned to it, along with the connections it holds.
+    private static final class Lane
+    {
+        private final ExecutorService executor_ = Executors.newSingleThreadExecutor();
+
+        // The number of open data objects per account. Only accessed by the lane's thread.
+        private final Map<String, Integer> openFiles_ = new HashMap<>();
+    }
+
+    private final class ReadHandle
+    {
+        private final Lane lane_;
+        private final IRODSAccount acct_;
+        private final String path_;
+        private volatile long lastAccessTime_;
+
+        // Only accessed by the lane's thread.
+        private IRODSRandomAccessFile file_;
+        private long position_;
+        private boolean closed_;
+
+        ReadHandle(Lane _lane, IRODSAccount _acct, String _path)
+        {
+            lane_ = _lane;
+            acct_ = _acct;
+            path_ = _path;
+            touch();
+        }
+
+        void touch()
+        {
+            lastAccessTime_ = System.currentTimeMillis();
+        }
+
+        int read(byte[] _buffer, int _bufferOffset, long _offset, int _count) throws IOException
+        {
+            return execute(() -> {
+                if (closed_)
+                {
+                    // The read was queued behind the close. The caller retries with a new handle.
+                    throw new RejectedExecutionException();
+                }
+
+                if (null == file_)
+                {
+                    log_.debug("read - Opening read handle for [{}] ...", path_);
+                    lane_.openFiles_.merge(acct_.toString(), 1, Integer::sum);
+
+                    try
+                    {
+                        file_ = factory_.getIRODSFileFactory(acct_).instanceIRODSRandomAccessFile(path_, OpenFlags.READ);
+                    }
+                    catch (JargonException | RuntimeException e)
+                    {
+                        closeConnectionIfUnused();
+                        throw e;
+                    }
+
+                    position_ = 0;
+                }
+
+                // Sequential reads do not require a seek.
+                if (position_ != _offset)
+                {
+                    file_.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
+                    position_ = _offset;
+                }
+
+                int bytesRead = file_.read(_buffer, _bufferOffset, _count);
+
+                if (bytesRead > 0)
+                {
+                    position_ += bytesRead;
+                }
+
+                return bytesRead;
+            });
+        }
+
+        void close()
+        {
+            try
+            {
+                lane_.executor_.execute(() -> {
+                    if (closed_)
+                    {
+                        return;
+                    }
+
+                    closed_ = true;
+
+                    if (null == file_)
+                    {
+                        return;
+                    }
+
+                    try
+                    {
+                        file_.close();
+                    }
+                    catch (IOException e)
+                    {
+                        log_.error(e.getMessage());
+                    }
+                    finally
+                    {
+                        file_ = null;
+                        closeConnectionIfUnused();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // The cache has been closed.
+            }
+        }
+
+        // Must be called on the lane's thread after one of the handle's data objects
+        // has been closed (or failed to open).
+        private void closeConnectionIfUnused()
+        {
+            if (null == lane_.openFiles_.computeIfPresent(acct_.toString(), (k, n) -> (n > 1) ? n - 1 : null))
+            {
+                factory_.closeSessionAndEatExceptions(acct_);
+            }
+        }
+
+        private <T> T execute(Callable<T> _task) throws IOException
+        {
+            try
+            {
+                return lane_.executor_.submit(_task).get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof RejectedExecutionException ree)
+                {
+                    throw ree;
+                }
+
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
@@ -15,7 +15,6 @@ import org.dcache.nfs.ExportFile;
 import org.dcache.nfs.v4.MDSOperationExecutor;
 import org.dcache.nfs.v4.NFSServerV41;
 import org.dcache.nfs.v4.xdr.nfs4_prot;
-import org.dcache.nfs.vfs.VirtualFileSystem;
 import org.dcache.oncrpc4j.rpc.OncRpcProgram;
 import org.dcache.oncrpc4j.rpc.OncRpcSvc;
 import org.dcache.oncrpc4j.rpc.OncRpcSvcBuilder;
@@ -99,7 +98,7 @@ public class ServerMain
             // @formatter:on
 
             ExportFile exportFile = new ExportFile(new File(EXPORTS_CONFIG_PATH));
-            VirtualFileSystem vfs = new IRODSVirtualFileSystem(config, ifactory, idMapper, cacheManager);
+            final IRODSVirtualFileSystem vfs = new IRODSVirtualFileSystem(config, ifactory, idMapper, cacheManager);
 
             // @formatter:off
             NFSServerV41 nfs4 = new NFSServerV41.Builder()
@@ -122,6 +121,7 @@ public class ServerMain
                     log_.info("main - Shutting down server ...");
                     
                     close(nfsSvc);
+                    close(vfs);
                     close(ifsys);
 
                     log_.info("main - done.");
@@ -174,6 +174,21 @@ public class ServerMain
 
         JargonKeyedPoolConfig poolConfig = new JargonKeyedPoolConfig();
 
+        // Data objects kept open for reading or writing hold on to their connection, and
+        // a data object may be read or uploaded through several connections at once. The
+        // limit per account is raised by the number of connections those can hold. Data
+        // objects kept open for reading share a connection per account on each of the
+        // read handle cache's threads.
+        NFSServerConfig nfsSvrConfig = _config.getNfsServerConfig();
+        final int readConnections = (nfsSvrConfig.getReadHandleCacheMaxHandles() > 0)
+            ? Math.min(Math.max(1, nfsSvrConfig.getReadHandleCacheThreads()),
+                       nfsSvrConfig.getReadHandleCacheMaxHandles() * Math.max(1, nfsSvrConfig.getReadStreamsPerDataObject()))
+            : 0;
+        final int writeHandles = (nfsSvrConfig.getWriteHandleCacheIdleTimeoutInMilliseconds() > 0)
+            ? Math.max(0, nfsSvrConfig.getWriteHandleCacheMaxHandles()) : 0;
+        final int writeConnections = Math.max(1, nfsSvrConfig.getWriteStreamsPerDataObject()) + writeHandles;
+        poolConfig.setMaxTotalPerKey(poolConfig.getMaxTotalPerKey() + readConnections + writeConnections);
+
         JargonPooledObjectFactory poolFactory = new JargonPooledObjectFactory();
         poolFactory.setIrodsSession(ifsys.getIrodsSession());
         poolFactory.setIrodsSimpleProtocolManager(ifsys.getIrodsProtocolManager());
@@ -221,6 +236,10 @@ public class ServerMain
             {
                 service.stop();
             }
+            else if (_obj instanceof IRODSVirtualFileSystem vfs)
+            {
+                vfs.close();
+            }
             else if (_obj instanceof IRODSFileSystem ifsys)
             {
                 IRODSSession session = ifsys.getIrodsSession();
@@ -0,0 +1,498 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.IRODSFile;
+
+// Speeds up workloads that create many small files in one collection (e.g. untarring
+// an archive). Once a collection sees a burst of creates, new files in it are not
+// created in iRODS right away. Their contents are buffered in memory and each file is
+// created exclusively and written with a single put, on a pool of connections, once it
+// has not been written to for a short while (NFS does not tell the server when a file
+// is closed), when the client asks for stable storage, or when the file outgrows the
+// buffer. A data object created by another client in the meantime is not overwritten.
+// The upload fails instead and the error is reported to the client.
+//
+// Until a file is uploaded, it is served from local state (LOOKUP, GETATTR, READDIR,
+// READ). Every other operation on it must call flush() first.
+//
+// Files that have not been uploaded yet use inode numbers counting down from
+// Long.MAX_VALUE. They keep them after the upload since file handles must not change.
+class SmallFileIngest
+{
+    private static final Logger log_ = LogManager.getLogger(SmallFileIngest.class);
+
+    // A collection is in ingest mode while it sees at least this many creates per window.
+    private static final int BURST_CREATES = 16;
+    private static final long BURST_WINDOW_IN_MILLIS = 1000;
+
+    // Upload errors no one has asked for (e.g. the file handle went stale) are dropped
+    // after this long.
+    private static final long UPLOAD_ERROR_RETENTION_IN_MILLIS = 60_000;
+
+    // Notified when a file could not be uploaded. The inode no longer refers to anything,
+    // so it must stop being mapped to the path (which may be another client's data object).
+    interface UploadFailureListener
+    {
+        void failed(long _inodeNumber, IRODSAccount _acct, Path _path);
+    }
+
+    private record UploadError(IOException error, long time) {}
+
+    private final IRODSAccessObjectFactory factory_;
+    private final DataObjectChangeListener listener_;
+    private final UploadFailureListener failureListener_;
+    private final Metrics metrics_;
+    private final int maxFileSize_;
+    private final long maxMemory_;
+    private final long uploadDelayInMillis_;
+    private final Map<Long, PendingFile> files_;
+    private final Map<Path, PendingFile> filesByPath_;
+    private final Map<Long, UploadError> uploadErrors_;
+    private final Map<Path, Burst> bursts_;
+    private final AtomicLong bytesBuffered_;
+    private final AtomicLong nextInodeNumber_;
+    private ScheduledExecutorService scheduler_;
+    private ExecutorService uploader_;
+
+    SmallFileIngest(IRODSAccessObjectFactory _factory,
+                    int _maxFileSize,
+                    long _maxMemory,
+                    int _uploadDelayInMillis,
+                    int _uploadThreads,
+                    DataObjectChangeListener _listener,
+                    UploadFailureListener _failureListener,
+                    Metrics _metrics)
+    {
+        factory_ = _factory;
+        listener_ = _listener;
+        failureListener_ = _failureListener;
+        metrics_ = _metrics;
+        maxFileSize_ = _maxFileSize;
+        maxMemory_ = _maxMemory;
+        uploadDelayInMillis_ = _uploadDelayInMillis;
+        files_ = new ConcurrentHashMap<>();
+        filesByPath_ = new ConcurrentHashMap<>();
+        uploadErrors_ = new ConcurrentHashMap<>();
+        bursts_ = new ConcurrentHashMap<>();
+        bytesBuffered_ = new AtomicLong();
+        nextInodeNumber_ = new AtomicLong(Long.MAX_VALUE);
+
+        metrics_.gauge("small_file_ingest.pending_files", files_::size);
+        metrics_.gauge("small_file_ingest.bytes_buffered", bytesBuffered_::get);
+
+        if (isEnabled())
+        {
+            final long period = Math.max(50, uploadDelayInMillis_ / 2);
+
+            scheduler_ = Executors.newSingleThreadScheduledExecutor();
+            scheduler_.scheduleWithFixedDelay(this::uploadIdleFiles, period, period, TimeUnit.MILLISECONDS);
+
+            uploader_ = Executors.newFixedThreadPool(Math.max(1, _uploadThreads));
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return maxFileSize_ > 0 && maxMemory_ > 0;
+    }
+
+    // Records the creation of the file. Returns the inode number of the new (pending)
+    // file if the collection is in ingest mode, or null if the caller must create the
+    // data object in iRODS.
+    Long create(IRODSAccount _acct, Path _path)
+    {
+        if (!isEnabled() || !isBurst(_path.getParent()) || bytesBuffered_.get() >= maxMemory_ || filesByPath_.containsKey(_path))
+        {
+            return null;
+        }
+
+        final long inodeNumber = nextInodeNumber_.getAndDecrement();
+        PendingFile file = new PendingFile(inodeNumber, _acct, _path);
+
+        files_.put(inodeNumber, file);
+        filesByPath_.put(_path, file);
+
+        metrics_.increment("small_file_ingest.deferred_creates");
+        log_.debug("create - Deferring creation of [{}] ...", _path);
+
+        return inodeNumber;
+    }
+
+    PendingFile get(long _inodeNumber)
+    {
+        return files_.get(_inodeNumber);
+    }
+
+    PendingFile get(Path _path)
+    {
+        return filesByPath_.get(_path);
+    }
+
+    // Returns the pending files the user created in the collection, ordered by name.
+    List<PendingFile> list(Path _collection, String _userName)
+    {
+        List<PendingFile> files = new ArrayList<>();
+
+        if (files_.isEmpty())
+        {
+            return files;
+        }
+
+        filesByPath_.forEach((path, file) -> {
+            if (_collection.equals(path.getParent()) && file.acct_.getUserName().equals(_userName))
+            {
+                files.add(file);
+            }
+        });
+
+        files.sort(Comparator.comparing(file -> file.path_));
+
+        return files;
+    }
+
+    // Buffers the data. Returns false if the file is not pending (any more), in which
+    // case the caller writes to the data object in iRODS. A file that would outgrow the
+    // buffer is uploaded first.
+    boolean write(long _inodeNumber, byte[] _data, long _offset, int _count) throws IOException
+    {
+        PendingFile file = files_.get(_inodeNumber);
+
+        if (null == file)
+        {
+            return false;
+        }
+
+        if (_offset + _count <= maxFileSize_ && bytesBuffered_.get() + _count <= maxMemory_ && file.write(_data, _offset, _count))
+        {
+            return true;
+        }
+
+        flush(_inodeNumber);
+
+        return false;
+    }
+
+    // Makes sure the data object exists in iRODS with everything written to it so far,
+    // and reports an earlier upload failure.
+    void flush(long _inodeNumber) throws IOException
+    {
+        PendingFile file = files_.get(_inodeNumber);
+
+        if (null != file)
+        {
+            try
+            {
+                startUpload(file).join();
+            }
+            catch (CompletionException e)
+            {
+                // Reported below.
+            }
+        }
+
+        UploadError error = uploadErrors_.remove(_inodeNumber);
+
+        if (null != error)
+        {
+            throw error.error();
+        }
+    }
+
+    // Drops the file without uploading it. Returns true if the data object was never
+    // created in iRODS. Otherwise, the upload is allowed to finish.
+    boolean discard(long _inodeNumber)
+    {
+        PendingFile file = files_.get(_inodeNumber);
+
+        if (null == file)
+        {
+            uploadErrors_.remove(_inodeNumber);
+            return false;
+        }
+
+        if (file.cancel())
+        {
+            forget(file);
+            metrics_.increment("small_file_ingest.discarded_files");
+            return true;
+        }
+
+        try
+        {
+            startUpload(file).join();
+        }
+        catch (CompletionException e)
+        {
+            // The data object was not created.
+            uploadErrors_.remove(_inodeNumber);
+            return true;
+        }
+
+        return false;
+    }
+
+    void close()
+    {
+        if (null == scheduler_)
+        {
+            return;
+        }
+
+        scheduler_.shutdownNow();
+
+        List<CompletableFuture<Void>> uploads = new ArrayList<>();
+        files_.values().forEach(file -> uploads.add(startUpload(file)));
+
+        for (CompletableFuture<Void> upload : uploads)
+        {
+            try
+            {
+                upload.join();
+            }
+            catch (CompletionException e)
+            {
+                // Already logged.
+            }
+        }
+
+        uploader_.shutdown();
+    }
+
+    private boolean isBurst(Path _collection)
+    {
+        final long now = System.currentTimeMillis();
+        Burst burst = bursts_.computeIfAbsent(_collection, k -> new Burst());
+
+        synchronized (burst)
+        {
+            if (now - burst.windowStart_ > BURST_WINDOW_IN_MILLIS)
+            {
+                burst.windowStart_ = now;
+                burst.creates_ = 0;
+            }
+
+            burst.lastCreateTime_ = now;
+
+            if (++burst.creates_ >= BURST_CREATES)
+            {
+                burst.activeUntil_ = now + BURST_WINDOW_IN_MILLIS;
+            }
+
+            return now < burst.activeUntil_;
+        }
+    }
+
+    private CompletableFuture<Void> startUpload(PendingFile _file)
+    {
+        synchronized (_file)
+        {
+            if (null == _file.upload_)
+            {
+                final byte[] data = Arrays.copyOf(_file.data_, _file.size_);
+                _file.upload_ = CompletableFuture.runAsync(() -> upload(_file, data), uploader_);
+            }
+
+            return _file.upload_;
+        }
+    }
+
+    private void upload(PendingFile _file, byte[] _data)
+    {
+        log_.debug("upload - Uploading [{}] bytes to [{}] ...", _data.length, _file.path_);
+
+        try
+        {
+            IRODSFile irodsFile = factory_.getIRODSFileFactory(_file.acct_).instanceIRODSFile(_file.path_.toString());
+
+            try
+            {
+                // The file was created without checking iRODS (see create()). Creating the
+                // data object exclusively keeps the put from overwriting one created by
+                // another client in the meantime.
+                if (!irodsFile.createNewFile())
+                {
+                    throw new IOException("Data object already exists in iRODS");
+                }
+
+                // The create leaves the data object open. It must be closed (finalizing the
+                // empty replica) before the put opens it again.
+                irodsFile.close();
+
+                if (_data.length > 0)
+                {
+                    factory_.getStream2StreamAO(_file.acct_).streamBytesToIRODSFile(_data, irodsFile);
+                }
+            }
+            finally
+            {
+                irodsFile.close();
+            }
+
+            metrics_.increment("small_file_ingest.uploads");
+            metrics_.add("small_file_ingest.bytes_uploaded", _data.length);
+
+            // The cached listing must include the data object before the pending file
+            // stops being listed.
+            listener_.changed(_file.inodeNumber_, _file.acct_, _file.path_.toString());
+        }
+        catch (IOException | JargonException e)
+        {
+            log_.error("upload - Could not upload [{}]: {}", _file.path_, e.getMessage());
+            IOException error = (e instanceof IOException ioe) ? ioe : new IOException(e);
+            uploadErrors_.put(_file.inodeNumber_, new UploadError(error, System.currentTimeMillis()));
+            metrics_.increment("small_file_ingest.failed_uploads");
+
+            // Before the file stops being pending, so that no write falls through to the
+            // data object at the path.
+            failureListener_.failed(_file.inodeNumber_, _file.acct_, _file.path_);
+            throw new CompletionException(e);
+        }
+        finally
+        {
+            forget(_file);
+            factory_.closeSessionAndEatExceptions();
+        }
+    }
+
+    private void forget(PendingFile _file)
+    {
+        if (files_.remove(_file.inodeNumber_, _file))
+        {
+            filesByPath_.remove(_file.path_, _file);
+            bytesBuffered_.addAndGet(-_file.getSize());
+        }
+    }
+
+    private void uploadIdleFiles()
+    {
+        final long now = System.currentTimeMillis();
+
+        files_.values().forEach(file -> {
+            if (now - file.getModifyTime() >= uploadDelayInMillis_)
+            {
+                startUpload(file);
+            }
+        });
+
+        bursts_.values().removeIf(burst -> now - burst.lastCreateTime_ > BURST_WINDOW_IN_MILLIS);
+        uploadErrors_.values().removeIf(error -> now - error.time() > UPLOAD_ERROR_RETENTION_IN_MILLIS);
+    }
+
+    private static final class Burst
+    {
+        private long windowStart_;
+        private long lastCreateTime_;
+        private long activeUntil_;
+        private int creates_;
+    }
+
+    // A file that has not been created in iRODS yet.
+    final class PendingFile
+    {
+        final long inodeNumber_;
+        final IRODSAccount acct_;
+        final Path path_;
+        final long createTime_;
+        private byte[] data_;
+        private int size_;
+        private long modifyTime_;
+        private boolean cancelled_;
+        private CompletableFuture<Void> upload_;
+
+        PendingFile(long _inodeNumber, IRODSAccount _acct, Path _path)
+        {
+            inodeNumber_ = _inodeNumber;
+            acct_ = _acct;
+            path_ = _path;
+            createTime_ = System.currentTimeMillis();
+            data_ = new byte[0];
+            modifyTime_ = createTime_;
+        }
+
+        synchronized int getSize()
+        {
+            return size_;
+        }
+
+        synchronized long getModifyTime()
+        {
+            return modifyTime_;
+        }
+
+        // Copies the buffered contents into the buffer. Returns 0 at the end of the file.
+        synchronized int read(byte[] _buffer, long _offset, int _count)
+        {
+            if (_offset >= size_)
+            {
+                return 0;
+            }
+
+            final int length = (int) Math.min(_count, size_ - _offset);
+            System.arraycopy(data_, (int) _offset, _buffer, 0, length);
+
+            return length;
+        }
+
+        // Returns false if the upload has already started.
+        private synchronized boolean write(byte[] _data, long _offset, int _count)
+        {
+            if (null != upload_ || cancelled_)
+            {
+                return false;
+            }
+
+            final int end = (int) (_offset + _count);
+
+            if (end > data_.length)
+            {
+                data_ = Arrays.copyOf(data_, Math.min(maxFileSize_, Math.max(end, data_.length * 2)));
+            }
+
+            System.arraycopy(_data, 0, data_, (int) _offset, _count);
+
+            if (end > size_)
+            {
+                bytesBuffered_.addAndGet(end - size_);
+                size_ = end;
+            }
+
+            modifyTime_ = System.currentTimeMillis();
+
+            return true;
+        }
+
+        // Returns false if the upload has already started.
+        private synchronized boolean cancel()
+        {
+            if (null != upload_)
+            {
+                return false;
+            }
+
+            cancelled_ = true;
+            upload_ = CompletableFuture.completedFuture(null);
+
+            return true;
+        }
+    }
+}
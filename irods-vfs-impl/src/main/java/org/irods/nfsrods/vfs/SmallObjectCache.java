@@ -0,0 +1,111 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Holds the entire contents of small data objects in memory. The first read of a
+// small data object fetches all of it in one request, and every later read (at any
+// offset) is served from memory until the data object changes or is evicted.
+//
+// Entries are tagged with the version (modify time and size) of the data object and
+// are evicted in least-recently-used order once the memory limit is reached.
+class SmallObjectCache
+{
+    private record Entry(BlockCache.Version version, byte[] data) {}
+
+    private final Metrics metrics_;
+    private final int maxObjectSize_;
+    private final long maxMemory_;
+    private final InvalidationTracker invalidations_;
+    private final LinkedHashMap<Long, Entry> entries_;
+    private long memoryInUse_;
+
+    SmallObjectCache(int _maxObjectSize, long _maxMemory, Metrics _metrics)
+    {
+        metrics_ = _metrics;
+        maxObjectSize_ = _maxObjectSize;
+        maxMemory_ = _maxMemory;
+        invalidations_ = new InvalidationTracker();
+        entries_ = new LinkedHashMap<>(16, 0.75f, true);
+
+        metrics_.gauge("small_object_cache.bytes_cached", this::getMemoryInUse);
+    }
+
+    boolean isEnabled()
+    {
+        return maxObjectSize_ > 0 && maxMemory_ > 0;
+    }
+
+    // Returns true if a data object of the given size should be fetched whole.
+    boolean qualifies(long _size)
+    {
+        return _size >= 0 && _size <= maxObjectSize_;
+    }
+
+    // Returns the contents of the data object, or null if they are not cached for
+    // the given version.
+    synchronized byte[] get(long _inodeNumber, BlockCache.Version _version)
+    {
+        Entry entry = entries_.get(_inodeNumber);
+
+        if (null == entry || !entry.version().equals(_version))
+        {
+            metrics_.increment("small_object_cache.misses");
+            return null;
+        }
+
+        metrics_.increment("small_object_cache.hits");
+
+        return entry.data();
+    }
+
+    // Returns a token to pass to put(). See InvalidationTracker.
+    long token(long _inodeNumber)
+    {
+        return invalidations_.token(_inodeNumber);
+    }
+
+    synchronized void put(long _inodeNumber, BlockCache.Version _version, byte[] _data, long _token)
+    {
+        if (!invalidations_.isCurrent(_inodeNumber, _token) || _data.length > maxMemory_)
+        {
+            return;
+        }
+
+        Entry previous = entries_.put(_inodeNumber, new Entry(_version, _data));
+
+        if (null != previous)
+        {
+            memoryInUse_ -= previous.data().length;
+        }
+
+        memoryInUse_ += _data.length;
+
+        Iterator<Map.Entry<Long, Entry>> it = entries_.entrySet().iterator();
+
+        while (memoryInUse_ > maxMemory_ && it.hasNext())
+        {
+            memoryInUse_ -= it.next().getValue().data().length;
+            it.remove();
+            metrics_.increment("small_object_cache.evictions");
+        }
+    }
+
+    synchronized void invalidate(long _inodeNumber)
+    {
+        invalidations_.invalidate(_inodeNumber);
+
+        Entry entry = entries_.remove(_inodeNumber);
+
+        if (null != entry)
+        {
+            memoryInUse_ -= entry.data().length;
+        }
+    }
+
+    private synchronized long getMemoryInUse()
+    {
+        return memoryInUse_;
+    }
+}
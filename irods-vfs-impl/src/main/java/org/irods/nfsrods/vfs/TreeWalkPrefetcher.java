@@ -0,0 +1,193 @@
+package org.irods.nfsrods.vfs;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.security.auth.Subject;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Detects clients walking a tree (find, du, rsync, ls -R) and lists the collections
+// they are about to visit ahead of time. A walk is assumed when a user lists a
+// collection shortly after listing its parent. The next few subcollections of the
+// parent (in listing order) are then listed in the background on behalf of the user,
+// which fetches their first page, maps their entries' inodes and caches their stats.
+// By the time the client gets to them, READDIR, LOOKUP and GETATTR hit warm caches.
+//
+// Prefetches run on a small pool with a bounded queue. When the queue is full,
+// prefetches are dropped rather than delaying the ones already queued.
+class TreeWalkPrefetcher
+{
+    private static final Logger log_ = LogManager.getLogger(TreeWalkPrefetcher.class);
+
+    // How recently the parent must have been listed for a listing to count as a step
+    // of a walk. Also how long a prefetched collection is not prefetched again.
+    private static final long WALK_WINDOW_IN_MILLIS = 10_000;
+    private static final int MAX_TRACKED_LISTINGS = 4096;
+    private static final int MAX_QUEUED_PREFETCHES = 64;
+
+    interface Walker
+    {
+        // Returns up to _count subcollections of _parent that follow _child in the user's
+        // cached view of _parent, or an empty list if _parent is not cached.
+        List<String> getNextSubcollections(String _userName, String _parent, String _child, int _count) throws Exception;
+
+        // Lists the collection as the user would.
+        void prefetch(Subject _subject, String _path) throws Exception;
+    }
+
+    private final int depth_;
+    private final Walker walker_;
+    private final Metrics metrics_;
+    private final Map<String, Long> recentListings_;
+    private final Map<String, Long> recentPrefetches_;
+    private ThreadPoolExecutor executor_;
+
+    TreeWalkPrefetcher(int _depth, int _threads, Walker _walker, Metrics _metrics)
+    {
+        depth_ = _depth;
+        walker_ = _walker;
+        metrics_ = _metrics;
+        recentListings_ = newRecentMap();
+        recentPrefetches_ = newRecentMap();
+
+        if (depth_ > 0 && _threads > 0)
+        {
+            // @formatter:off
+            executor_ = new ThreadPoolExecutor(_threads,
+                                               _threads,
+                                               0,
+                                               TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(MAX_QUEUED_PREFETCHES),
+                                               new ThreadPoolExecutor.AbortPolicy());
+            // @formatter:on
+        }
+    }
+
+    // Called when a user starts listing a collection.
+    void onList(Subject _subject, String _userName, String _path)
+    {
+        if (null == executor_)
+        {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        Path parent = Paths.get(_path).getParent();
+
+        synchronized (recentListings_)
+        {
+            recentListings_.put(_userName + "#" + _path, now);
+
+            Long parentListed = (null != parent) ? recentListings_.get(_userName + "#" + parent) : null;
+
+            if (null == parentListed || now - parentListed >= WALK_WINDOW_IN_MILLIS)
+            {
+                return;
+            }
+        }
+
+        metrics_.increment("tree_walk.steps");
+
+        submit(() -> {
+            for (String sibling : walker_.getNextSubcollections(_userName, parent.toString(), _path, depth_))
+            {
+                final String key = _userName + "#" + sibling;
+
+                if (!markPrefetched(key, now))
+                {
+                    continue;
+                }
+
+                boolean submitted = submit(() -> {
+                    walker_.prefetch(_subject, sibling);
+                    metrics_.increment("tree_walk.prefetches");
+                    return null;
+                });
+
+                if (!submitted)
+                {
+                    // Allow the collection to be prefetched on the next step of the walk.
+                    synchronized (recentPrefetches_)
+                    {
+                        recentPrefetches_.remove(key);
+                    }
+                }
+            }
+
+            return null;
+        });
+    }
+
+    void close()
+    {
+        if (null != executor_)
+        {
+            executor_.shutdownNow();
+        }
+    }
+
+    private boolean markPrefetched(String _key, long _now)
+    {
+        synchronized (recentPrefetches_)
+        {
+            Long prefetched = recentPrefetches_.get(_key);
+
+            if (null != prefetched && _now - prefetched < WALK_WINDOW_IN_MILLIS)
+            {
+                return false;
+            }
+
+            recentPrefetches_.put(_key, _now);
+
+            return true;
+        }
+    }
+
+    private boolean submit(Callable<Void> _task)
+    {
+        try
+        {
+            executor_.execute(() -> {
+                try
+                {
+                    _task.call();
+                }
+                catch (Exception e)
+                {
+                    log_.debug("submit - Prefetch failed: {}", e.getMessage());
+                }
+            });
+
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            metrics_.increment("tree_walk.dropped_prefetches");
+            return false;
+        }
+    }
+
+    private static Map<String, Long> newRecentMap()
+    {
+        return new LinkedHashMap<>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> _eldest)
+            {
+                return size() > MAX_TRACKED_LISTINGS;
+            }
+        };
+    }
+}
@@ -0,0 +1,944 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.FileIOOperations;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+
+// Buffers UNSTABLE writes in memory as per-inode dirty extents and writes them to
+// iRODS when the client sends a COMMIT, when the data object is read, renamed, or
+// truncated, when it has not been written to for a while, or when the buffer is full.
+//
+// Clients send the WRITEs for a file in parallel, so they arrive out of order. Once
+// the extents gathered for a data object form a contiguous run of at least the flush
+// size, the run is written in the background in offset order. Adjacent extents are
+// merged before they are written so that iRODS sees a few large sequential writes
+// instead of many small ones. Writers wait for background flushes to free memory
+// when the buffer is full.
+//
+// Extents that could not be written are put back into the buffer and written again
+// by the next flush. Errors are remembered and reported by COMMIT until a full flush
+// succeeds (or the data is discarded), so that clients do not assume their data is safe.
+class WriteBehindBuffer
+{
+    private static final Logger log_ = LogManager.getLogger(WriteBehindBuffer.class);
+
+    // The smallest amount of data worth giving its own stream.
+    private static final long MIN_STREAM_BYTES = 1 << 20;
+    private static final long SHARE_ALIGNMENT = 64 << 10;
+
+    // A slice of a buffered extent.
+    private record Piece(long offset, byte[] data, int dataOffset, int length) {}
+
+    private final IRODSAccessObjectFactory factory_;
+    private final WriteHandleCache writeHandles_;
+    private final WriteJournal journal_;
+    private final DataObjectChangeListener listener_;
+    private final Metrics metrics_;
+    private final long maxMemory_;
+    private final int flushSize_;
+    private final int streams_;
+    private final long parallelThreshold_;
+    private final long idleFlushTimeoutInMillis_;
+    private final Map<Long, DirtyFile> files_;
+    private final AtomicLong bytesBuffered_;
+    private final AtomicInteger backgroundFlushes_;
+    private final Object backpressure_;
+    private ScheduledExecutorService scheduler_;
+    private ExecutorService flusher_;
+    private ExecutorService uploader_;
+
+    WriteBehindBuffer(IRODSAccessObjectFactory _factory,
+                      long _maxMemory,
+                      int _flushSize,
+                      int _streams,
+                      long _parallelThreshold,
+                      int _idleFlushTimeoutInMillis,
+                      WriteHandleCache _writeHandles,
+                      WriteJournal _journal,
+                      DataObjectChangeListener _listener,
+                      Metrics _metrics)
+    {
+        factory_ = _factory;
+        writeHandles_ = _writeHandles;
+        journal_ = _journal;
+        listener_ = _listener;
+        metrics_ = _metrics;
+        maxMemory_ = _maxMemory;
+        flushSize_ = Math.max(1, _flushSize);
+        streams_ = Math.max(1, _streams);
+        parallelThreshold_ = _parallelThreshold;
+        idleFlushTimeoutInMillis_ = _idleFlushTimeoutInMillis;
+        files_ = new ConcurrentHashMap<>();
+        bytesBuffered_ = new AtomicLong();
+        backgroundFlushes_ = new AtomicInteger();
+        backpressure_ = new Object();
+
+        metrics_.gauge("write_behind.bytes_buffered", bytesBuffered_::get);
+        metrics_.gauge("write_behind.dirty_files", files_::size);
+
+        if (isEnabled())
+        {
+            final long period = Math.max(100, idleFlushTimeoutInMillis_ / 2);
+
+            scheduler_ = Executors.newSingleThreadScheduledExecutor();
+            scheduler_.scheduleWithFixedDelay(this::flushIdleFiles, period, period, TimeUnit.MILLISECONDS);
+
+            // At most one background flush is queued per data object.
+            flusher_ = Executors.newCachedThreadPool();
+
+            // Concurrent parallel uploads share the streams, which bounds the number of
+            // connections taken from the pool.
+            if (streams_ > 1)
+            {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(streams_, streams_, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+                executor.allowCoreThreadTimeOut(true);
+                uploader_ = executor;
+            }
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return maxMemory_ > 0;
+    }
+
+    // Returns true if buffered writes are on local stable storage when write() returns.
+    boolean isJournaled()
+    {
+        return isEnabled() && journal_.isEnabled();
+    }
+
+    // Buffers the data. Returns true if the data (and everything buffered before
+    // it) has been written to iRODS because the buffer was full.
+    boolean write(long _inodeNumber, IRODSAccount _acct, String _path, byte[] _data, long _offset, int _count)
+        throws IOException
+    {
+        DirtyFile file;
+        long sequence;
+
+        while (true)
+        {
+            file = files_.computeIfAbsent(_inodeNumber, k -> new DirtyFile(_inodeNumber, _acct, _path));
+
+            if (!file.acct_.getUserName().equals(_acct.getUserName()) || !file.path_.equals(_path))
+            {
+                // Data buffered for another user is written with that user's permissions.
+                flush(file);
+
+                if (file.retireIfEmpty())
+                {
+                    files_.remove(_inodeNumber, file);
+                }
+
+                continue;
+            }
+
+            sequence = file.add(_offset, Arrays.copyOf(_data, _count));
+
+            if (sequence >= 0)
+            {
+                break;
+            }
+        }
+
+        if (journal_.isEnabled())
+        {
+            journal_.sync(sequence);
+        }
+
+        metrics_.add("write_behind.bytes_written", _count);
+
+        if (file.getRunLength(_offset, flushSize_) >= flushSize_)
+        {
+            scheduleFlush(file);
+        }
+
+        if (bytesBuffered_.get() > maxMemory_)
+        {
+            awaitBackgroundFlushes();
+        }
+
+        // Nothing in flight will free enough memory. The writer pays for the flush.
+        if (bytesBuffered_.get() > maxMemory_)
+        {
+            metrics_.increment("write_behind.forced_flushes");
+            flush(_inodeNumber);
+            return true;
+        }
+
+        return false;
+    }
+
+    boolean hasDirtyData(long _inodeNumber)
+    {
+        DirtyFile file = files_.get(_inodeNumber);
+        return null != file && file.getEnd() >= 0;
+    }
+
+    // Returns the offset one past the last buffered byte, or -1 if nothing is buffered.
+    long getDirtyEnd(long _inodeNumber)
+    {
+        DirtyFile file = files_.get(_inodeNumber);
+        return (null != file) ? file.getEnd() : -1;
+    }
+
+    // Writes the buffered data to iRODS and reports any error from an earlier
+    // background flush. Used to implement COMMIT.
+    void commit(long _inodeNumber) throws IOException
+    {
+        DirtyFile file = files_.get(_inodeNumber);
+
+        if (null == file)
+        {
+            return;
+        }
+
+        flush(file);
+
+        // A background flush may have failed since.
+        IOException error = file.getError();
+
+        if (null != error)
+        {
+            throw error;
+        }
+    }
+
+    void flush(long _inodeNumber) throws IOException
+    {
+        DirtyFile file = files_.get(_inodeNumber);
+
+        if (null != file)
+        {
+            flush(file);
+        }
+    }
+
+    // Drops the buffered data without writing it (e.g. the data object was removed).
+    void discard(long _inodeNumber)
+    {
+        DirtyFile file = files_.remove(_inodeNumber);
+
+        if (null != file)
+        {
+            file.retire();
+
+            if (journal_.isEnabled())
+            {
+                journal_.release(_inodeNumber, journal_.getLastSequence());
+            }
+        }
+    }
+
+    void close()
+    {
+        if (null != scheduler_)
+        {
+            scheduler_.shutdownNow();
+        }
+
+        if (null != flusher_)
+        {
+            flusher_.shutdown();
+
+            try
+            {
+                flusher_.awaitTermination(30, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        files_.forEach((inodeNumber, file) -> {
+            try
+            {
+                flush(file);
+            }
+            catch (IOException e)
+            {
+                log_.error("close - Could not write buffered data to [{}]: {}", file.path_, e.getMessage());
+            }
+        });
+
+        if (null != uploader_)
+        {
+            uploader_.shutdown();
+        }
+
+        factory_.closeSessionAndEatExceptions();
+    }
+
+    private void flush(DirtyFile _file) throws IOException
+    {
+        flush(_file, false);
+    }
+
+    // Writes the buffered data to iRODS. If _fullRunsOnly is true, only contiguous
+    // runs of at least the flush size are written.
+    private void flush(DirtyFile _file, boolean _fullRunsOnly) throws IOException
+    {
+        _file.flushLock_.lock();
+
+        try
+        {
+            TreeMap<Long, byte[]> extents = _fullRunsOnly ? _file.takeRuns(flushSize_) : _file.take();
+
+            // The last journaled WRITE covered by this flush. Every WRITE before it is in the
+            // extents or was written by an earlier flush (failed flushes put theirs back).
+            final long sequence = _fullRunsOnly ? 0 : _file.getTakenSequence();
+
+            if (!extents.isEmpty())
+            {
+                try
+                {
+                    writeExtents(_file.inodeNumber_, _file.acct_, _file.path_, extents);
+                    listener_.changed(_file.inodeNumber_, _file.acct_, _file.path_);
+                }
+                catch (IOException e)
+                {
+                    log_.error("flush - Could not write buffered data to [{}]: {}", _file.path_, e.getMessage());
+                    _file.restore(extents, e);
+                    throw e;
+                }
+            }
+
+            // Everything buffered up to now has been written, including the extents of
+            // earlier flushes that failed.
+            if (!_fullRunsOnly)
+            {
+                _file.clearError();
+            }
+
+            // The journal can forget the WRITEs once the replica is finalized.
+            if (sequence > 0)
+            {
+                writeHandles_.whenClosed(_file.inodeNumber_, () -> journal_.release(_file.inodeNumber_, sequence));
+            }
+        }
+        finally
+        {
+            _file.flushLock_.unlock();
+        }
+    }
+
+    private void writeExtents(long _inodeNumber, IRODSAccount _acct, String _path, TreeMap<Long, byte[]> _extents)
+        throws IOException
+    {
+        TreeMap<Long, byte[]> merged = merge(_extents);
+        final long bytes = merged.values().stream().mapToLong(data -> data.length).sum();
+
+        log_.debug("writeExtents - Writing [{}] bytes in [{}] extents to [{}] ...", bytes, merged.size(), _path);
+
+        if (isParallelUpload(merged, bytes))
+        {
+            writeParallel(_acct, _path, merged, bytes);
+        }
+        else if (writeHandles_.isEnabled())
+        {
+            // The replica is finalized when the shared write handle is closed.
+            writeHandles_.write(_inodeNumber, _acct, _path, merged);
+            metrics_.add("write_behind.irods_writes", merged.size());
+        }
+        else
+        {
+            List<Piece> pieces = new ArrayList<>();
+            merged.forEach((offset, data) -> pieces.add(new Piece(offset, data, 0, data.length)));
+            writePieces(_acct, _path, pieces);
+        }
+
+        metrics_.add("write_behind.bytes_flushed", bytes);
+        metrics_.increment("write_behind.flushes");
+    }
+
+    // A data object that has been written sequentially past the threshold is uploaded
+    // through several streams at once, as long as each stream gets a useful amount of data.
+    private boolean isParallelUpload(TreeMap<Long, byte[]> _merged, long _bytes)
+    {
+        if (null == uploader_ || _merged.isEmpty() || _bytes < 2 * MIN_STREAM_BYTES)
+        {
+            return false;
+        }
+
+        Map.Entry<Long, byte[]> last = _merged.lastEntry();
+
+        return last.getKey() + last.getValue().length >= parallelThreshold_;
+    }
+
+    // Splits the extents into one contiguous share per stream and writes the shares
+    // concurrently. Each stream opens the replica with its own connection from the
+    // connection pool. The opens are coordinated, so iRODS finalizes the replica once
+    // the last stream (or the shared write handle) closes it.
+    private void writeParallel(IRODSAccount _acct, String _path, TreeMap<Long, byte[]> _merged, long _bytes)
+        throws IOException
+    {
+        final long share = Math.max(MIN_STREAM_BYTES, alignUp((_bytes + streams_ - 1) / streams_, SHARE_ALIGNMENT));
+
+        List<List<Piece>> shares = new ArrayList<>();
+        List<Piece> pieces = new ArrayList<>();
+        long shareBytes = 0;
+
+        for (Map.Entry<Long, byte[]> e : _merged.entrySet())
+        {
+            final byte[] data = e.getValue();
+
+            for (int pos = 0; pos < data.length;)
+            {
+                final int length = (int) Math.min(data.length - pos, share - shareBytes);
+
+                pieces.add(new Piece(e.getKey() + pos, data, pos, length));
+                shareBytes += length;
+                pos += length;
+
+                if (shareBytes == share)
+                {
+                    shares.add(pieces);
+                    pieces = new ArrayList<>();
+                    shareBytes = 0;
+                }
+            }
+        }
+
+        if (!pieces.isEmpty())
+        {
+            shares.add(pieces);
+        }
+
+        metrics_.increment("write_behind.parallel_flushes");
+
+        List<CompletableFuture<Void>> streams = new ArrayList<>();
+
+        for (List<Piece> p : shares)
+        {
+            streams.add(CompletableFuture.runAsync(() -> {
+                try
+                {
+                    writePieces(_acct, _path, p);
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                finally
+                {
+                    factory_.closeSessionAndEatExceptions();
+                }
+            }, uploader_));
+        }
+
+        IOException error = null;
+
+        // Every stream must finish before the extents are considered written.
+        for (CompletableFuture<Void> stream : streams)
+        {
+            try
+            {
+                stream.join();
+            }
+            catch (CompletionException e)
+            {
+                if (null == error)
+                {
+                    error = (e.getCause() instanceof UncheckedIOException uioe) ? uioe.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+
+        if (null != error)
+        {
+            throw error;
+        }
+    }
+
+    // Opens the data object, writes the pieces in order, and closes it.
+    private void writePieces(IRODSAccount _acct, String _path, List<Piece> _pieces) throws IOException
+    {
+        try
+        {
+            final var coordinated = true;
+            IRODSRandomAccessFile file = factory_.getIRODSFileFactory(_acct)
+                .instanceIRODSRandomAccessFile(_path, OpenFlags.READ_WRITE, coordinated);
+
+            try
+            {
+                long position = -1;
+
+                for (Piece piece : _pieces)
+                {
+                    // Adjacent pieces are written back to back without seeking.
+                    if (position != piece.offset())
+                    {
+                        file.seek(piece.offset(), FileIOOperations.SeekWhenceType.SEEK_START);
+                    }
+
+                    file.write(piece.data(), piece.dataOffset(), piece.length());
+                    position = piece.offset() + piece.length();
+
+                    metrics_.increment("write_behind.irods_writes");
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        catch (JargonException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    private static long alignUp(long _value, long _alignment)
+    {
+        return (_value + _alignment - 1) / _alignment * _alignment;
+    }
+
+    // Joins adjacent extents into buffers of up to the flush size. Extents larger
+    // than the flush size are written as they are.
+    private TreeMap<Long, byte[]> merge(TreeMap<Long, byte[]> _extents)
+    {
+        TreeMap<Long, byte[]> merged = new TreeMap<>();
+        List<byte[]> pieces = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+
+        for (Map.Entry<Long, byte[]> e : _extents.entrySet())
+        {
+            final long length = e.getValue().length;
+
+            if (e.getKey() != end || end - start + length > flushSize_)
+            {
+                addMerged(merged, start, end, pieces);
+                start = e.getKey();
+                end = start;
+            }
+
+            pieces.add(e.getValue());
+            end += length;
+        }
+
+        addMerged(merged, start, end, pieces);
+
+        return merged;
+    }
+
+    private static void addMerged(TreeMap<Long, byte[]> _merged, long _start, long _end, List<byte[]> _pieces)
+    {
+        if (_pieces.isEmpty())
+        {
+            return;
+        }
+
+        if (1 == _pieces.size())
+        {
+            _merged.put(_start, _pieces.get(0));
+        }
+        else
+        {
+            byte[] data = new byte[(int) (_end - _start)];
+            int offset = 0;
+
+            for (byte[] piece : _pieces)
+            {
+                System.arraycopy(piece, 0, data, offset, piece.length);
+                offset += piece.length;
+            }
+
+            _merged.put(_start, data);
+        }
+
+        _pieces.clear();
+    }
+
+    private void scheduleFlush(DirtyFile _file)
+    {
+        if (null == flusher_ || !_file.flushQueued_.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        backgroundFlushes_.incrementAndGet();
+
+        try
+        {
+            flusher_.execute(() -> flushRuns(_file));
+        }
+        catch (RejectedExecutionException e)
+        {
+            _file.flushQueued_.set(false);
+            onBackgroundFlushDone();
+        }
+    }
+
+    private void flushRuns(DirtyFile _file)
+    {
+        // Runs completed from here on need another flush.
+        _file.flushQueued_.set(false);
+
+        try
+        {
+            metrics_.increment("write_behind.background_flushes");
+            flush(_file, true);
+        }
+        catch (IOException e)
+        {
+            // Reported by the next COMMIT.
+        }
+        finally
+        {
+            factory_.closeSessionAndEatExceptions();
+            onBackgroundFlushDone();
+        }
+    }
+
+    private void onBackgroundFlushDone()
+    {
+        backgroundFlushes_.decrementAndGet();
+
+        synchronized (backpressure_)
+        {
+            backpressure_.notifyAll();
+        }
+    }
+
+    // Blocks the writer while the buffer is full and background flushes are still
+    // freeing memory.
+    private void awaitBackgroundFlushes()
+    {
+        metrics_.increment("write_behind.throttled_writes");
+
+        synchronized (backpressure_)
+        {
+            while (bytesBuffered_.get() > maxMemory_ && backgroundFlushes_.get() > 0)
+            {
+                try
+                {
+                    backpressure_.wait(100);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void flushIdleFiles()
+    {
+        final long now = System.currentTimeMillis();
+
+        try
+        {
+            files_.forEach((inodeNumber, file) -> {
+                if (now - file.lastWriteTime_ < idleFlushTimeoutInMillis_)
+                {
+                    return;
+                }
+
+                try
+                {
+                    flush(file);
+                }
+                catch (IOException e)
+                {
+                    // Reported by the next COMMIT.
+                }
+
+                if (!file.hasError() && file.retireIfEmpty())
+                {
+                    files_.remove(inodeNumber, file);
+                }
+            });
+        }
+        finally
+        {
+            factory_.closeSessionAndEatExceptions();
+        }
+    }
+
+    // The dirty extents of a single data object. Extents never overlap. A newer
+    // write replaces the overlapping parts of older extents. Package-private for tests.
+    final class DirtyFile
+    {
+        private final long inodeNumber_;
+        private final IRODSAccount acct_;
+        private final String path_;
+        private final ReentrantLock flushLock_ = new ReentrantLock();
+        private final AtomicBoolean flushQueued_ = new AtomicBoolean();
+        private TreeMap<Long, byte[]> extents_ = new TreeMap<>();
+        private long end_ = -1;
+        private long bytes_;
+        private long lastSequence_;
+        private long takenSequence_;
+        private IOException error_;
+        private boolean retired_;
+        private volatile long lastWriteTime_ = System.currentTimeMillis();
+
+        DirtyFile(long _inodeNumber, IRODSAccount _acct, String _path)
+        {
+            inodeNumber_ = _inodeNumber;
+            acct_ = _acct;
+            path_ = _path;
+        }
+
+        // Returns the journal sequence number of the write (0 if the journal is disabled),
+        // or -1 if the file has been retired and must be looked up again. The write is
+        // journaled under the lock so that take() knows which journaled writes it covers.
+        synchronized long add(long _offset, byte[] _data) throws IOException
+        {
+            if (retired_)
+            {
+                return -1;
+            }
+
+            if (journal_.isEnabled())
+            {
+                lastSequence_ = journal_.append(inodeNumber_, acct_.getUserName(), path_, _offset, _data);
+            }
+
+            final long end = _offset + _data.length;
+
+            // Trim the extent that starts before the new one and overlaps it.
+            Map.Entry<Long, byte[]> floor = extents_.lowerEntry(_offset);
+
+            if (null != floor && floor.getKey() + floor.getValue().length > _offset)
+            {
+                final long floorEnd = floor.getKey() + floor.getValue().length;
+
+                putExtent(floor.getKey(), Arrays.copyOf(floor.getValue(), (int) (_offset - floor.getKey())));
+
+                if (floorEnd > end)
+                {
+                    putExtent(end, Arrays.copyOfRange(floor.getValue(), (int) (end - floor.getKey()), floor.getValue().length));
+                }
+            }
+
+            // Remove (or trim) the extents that start inside the new one.
+            for (Map.Entry<Long, byte[]> e = extents_.ceilingEntry(_offset); null != e && e.getKey() < end; e = extents_.ceilingEntry(_offset))
+            {
+                removeExtent(e.getKey());
+
+                final long extentEnd = e.getKey() + e.getValue().length;
+
+                if (extentEnd > end)
+                {
+                    putExtent(end, Arrays.copyOfRange(e.getValue(), (int) (end - e.getKey()), e.getValue().length));
+                }
+            }
+
+            putExtent(_offset, _data);
+            end_ = Math.max(end_, end);
+            lastWriteTime_ = System.currentTimeMillis();
+
+            return lastSequence_;
+        }
+
+        synchronized long getEnd()
+        {
+            return end_;
+        }
+
+        synchronized TreeMap<Long, byte[]> take()
+        {
+            TreeMap<Long, byte[]> extents = extents_;
+
+            extents_ = new TreeMap<>();
+            end_ = -1;
+            takenSequence_ = lastSequence_;
+            bytesBuffered_.addAndGet(-bytes_);
+            bytes_ = 0;
+
+            return extents;
+        }
+
+        // Returns the length of the contiguous run of extents that includes the offset.
+        // Stops counting once the length reaches _limit.
+        synchronized long getRunLength(long _offset, long _limit)
+        {
+            long start = _offset;
+            long end = _offset;
+
+            for (Map.Entry<Long, byte[]> e = extents_.ceilingEntry(_offset);
+                 null != e && e.getKey() == end && end - start < _limit;
+                 e = extents_.higherEntry(e.getKey()))
+            {
+                end += e.getValue().length;
+            }
+
+            for (Map.Entry<Long, byte[]> e = extents_.lowerEntry(_offset);
+                 null != e && e.getKey() + e.getValue().length == start && end - start < _limit;
+                 e = extents_.lowerEntry(e.getKey()))
+            {
+                start = e.getKey();
+            }
+
+            return end - start;
+        }
+
+        // Removes and returns the contiguous runs of at least _minLength bytes.
+        synchronized TreeMap<Long, byte[]> takeRuns(long _minLength)
+        {
+            TreeMap<Long, byte[]> taken = new TreeMap<>();
+
+            for (Map.Entry<Long, byte[]> first = extents_.firstEntry(); null != first;)
+            {
+                final long start = first.getKey();
+                long end = start;
+
+                for (Map.Entry<Long, byte[]> e = first; null != e && e.getKey() == end; e = extents_.higherEntry(e.getKey()))
+                {
+                    end += e.getValue().length;
+                }
+
+                if (end - start >= _minLength)
+                {
+                    for (Map.Entry<Long, byte[]> e = extents_.ceilingEntry(start); null != e && e.getKey() < end; e = extents_.ceilingEntry(start))
+                    {
+                        taken.put(e.getKey(), e.getValue());
+                        removeExtent(e.getKey());
+                    }
+                }
+
+                first = extents_.ceilingEntry(end);
+            }
+
+            // The end is left alone so that the size reported to clients does not shrink
+            // while the runs are being written. The next full flush resets it.
+            return taken;
+        }
+
+        // Returns the sequence number of the last journaled write taken by take().
+        synchronized long getTakenSequence()
+        {
+            return takenSequence_;
+        }
+
+        // Puts back extents that could not be written so that the next flush writes
+        // them again. The parts that have been overwritten since they were taken are
+        // dropped.
+        synchronized void restore(TreeMap<Long, byte[]> _extents, IOException _error)
+        {
+            error_ = _error;
+
+            if (retired_)
+            {
+                return;
+            }
+
+            for (Map.Entry<Long, byte[]> e : _extents.entrySet())
+            {
+                final long start = e.getKey();
+                final byte[] data = e.getValue();
+                final long end = start + data.length;
+
+                Map.Entry<Long, byte[]> floor = extents_.lowerEntry(start);
+                long pos = (null != floor) ? Math.max(start, floor.getKey() + floor.getValue().length) : start;
+
+                // Fill the gaps between the newer extents.
+                while (pos < end)
+                {
+                    Map.Entry<Long, byte[]> next = extents_.ceilingEntry(pos);
+                    final long gapEnd = (null != next) ? Math.min(end, next.getKey()) : end;
+
+                    if (pos == start && gapEnd == end)
+                    {
+                        putExtent(start, data);
+                    }
+                    else if (gapEnd > pos)
+                    {
+                        putExtent(pos, Arrays.copyOfRange(data, (int) (pos - start), (int) (gapEnd - start)));
+                    }
+
+                    if (null == next || next.getKey() >= end)
+                    {
+                        break;
+                    }
+
+                    pos = next.getKey() + next.getValue().length;
+                }
+
+                end_ = Math.max(end_, end);
+            }
+        }
+
+        synchronized boolean hasError()
+        {
+            return null != error_;
+        }
+
+        synchronized IOException getError()
+        {
+            return error_;
+        }
+
+        synchronized void clearError()
+        {
+            error_ = null;
+        }
+
+        synchronized void retire()
+        {
+            retired_ = true;
+            bytesBuffered_.addAndGet(-bytes_);
+            bytes_ = 0;
+            extents_.clear();
+        }
+
+        // Retires the file unless it holds data or is being flushed.
+        synchronized boolean retireIfEmpty()
+        {
+            if (extents_.isEmpty() && !flushLock_.isLocked())
+            {
+                retired_ = true;
+            }
+
+            return retired_;
+        }
+
+        private void putExtent(long _offset, byte[] _data)
+        {
+            byte[] previous = extents_.put(_offset, _data);
+            long delta = _data.length - ((null != previous) ? previous.length : 0);
+
+            bytes_ += delta;
+            bytesBuffered_.addAndGet(delta);
+        }
+
+        private void removeExtent(long _offset)
+        {
+            byte[] previous = extents_.remove(_offset);
+
+            bytes_ -= previous.length;
+            bytesBuffered_.addAndGet(-previous.length);
+        }
+    }
+}
@@ -0,0 +1,523 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.irods.jargon.core.connection.IRODSAccount;
+import org.irods.jargon.core.exception.JargonException;
+import org.irods.jargon.core.packinstr.DataObjInp.OpenFlags;
+import org.irods.jargon.core.pub.IRODSAccessObjectFactory;
+import org.irods.jargon.core.pub.io.FileIOOperations;
+import org.irods.jargon.core.pub.io.IRODSRandomAccessFile;
+
+// Keeps one coordinated write handle open per inode and shares it between every
+// WRITE to the data object. Closing a handle finalizes the replica in iRODS (catalog
+// update, size recomputation, policy), so that only happens when the client sends a
+// COMMIT, when the last writer has been gone for the idle timeout, or when the data
+// object must be finalized before another operation (e.g. read, rename).
+//
+// As with ReadHandleCache, each handle owns the thread its iRODS connection is bound to,
+// so the number of open handles is bounded. When the limit is reached, the least recently
+// used handle is closed as soon as its last writer goes away.
+//
+// Errors from closing a handle outside of a COMMIT are reported by the next COMMIT.
+class WriteHandleCache
+{
+    private static final Logger log_ = LogManager.getLogger(WriteHandleCache.class);
+
+    private final IRODSAccessObjectFactory factory_;
+    private final DataObjectChangeListener listener_;
+    private final Metrics metrics_;
+    private final long idleTimeoutInMillis_;
+    private final int maxHandles_;
+    private final Map<Long, WriteHandle> handles_;
+    private final Map<Long, IOException> closeErrors_;
+    private ScheduledExecutorService scheduler_;
+
+    WriteHandleCache(IRODSAccessObjectFactory _factory,
+                     int _idleTimeoutInMillis,
+                     int _maxHandles,
+                     DataObjectChangeListener _listener,
+                     Metrics _metrics)
+    {
+        factory_ = _factory;
+        listener_ = _listener;
+        metrics_ = _metrics;
+        idleTimeoutInMillis_ = _idleTimeoutInMillis;
+        maxHandles_ = _maxHandles;
+        handles_ = new ConcurrentHashMap<>();
+        closeErrors_ = new ConcurrentHashMap<>();
+
+        metrics_.gauge("write_handle_cache.open_handles", handles_::size);
+
+        if (isEnabled())
+        {
+            final long period = Math.max(100, idleTimeoutInMillis_ / 2);
+
+            scheduler_ = Executors.newSingleThreadScheduledExecutor();
+            scheduler_.scheduleWithFixedDelay(this::closeIdleHandles, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean isEnabled()
+    {
+        return idleTimeoutInMillis_ > 0 && maxHandles_ > 0;
+    }
+
+    void write(long _inodeNumber, IRODSAccount _acct, String _path, byte[] _data, int _dataOffset, long _offset, int _count)
+        throws IOException
+    {
+        execute(_inodeNumber, _acct, _path, handle -> handle.write(_data, _dataOffset, _offset, _count));
+    }
+
+    // Writes the extents (offset => data) in order with a single hand-off to the handle's thread.
+    void write(long _inodeNumber, IRODSAccount _acct, String _path, NavigableMap<Long, byte[]> _extents)
+        throws IOException
+    {
+        execute(_inodeNumber, _acct, _path, handle -> {
+            for (Map.Entry<Long, byte[]> e : _extents.entrySet())
+            {
+                handle.write(e.getValue(), 0, e.getKey(), e.getValue().length);
+            }
+        });
+    }
+
+    // Returns the offset one past the last byte written through the open handle,
+    // or -1 if the inode has no open handle.
+    long getWrittenEnd(long _inodeNumber)
+    {
+        WriteHandle handle = handles_.get(_inodeNumber);
+        return (null != handle) ? handle.end_ : -1;
+    }
+
+    // Runs the callback once the replica written through the inode's open handle has
+    // been finalized, or right away if the inode has no open handle (or the handle has
+    // just been closed). The callback is dropped if the handle cannot be closed cleanly.
+    void whenClosed(long _inodeNumber, Runnable _callback)
+    {
+        WriteHandle handle = handles_.get(_inodeNumber);
+
+        if (null == handle)
+        {
+            _callback.run();
+            return;
+        }
+
+        try
+        {
+            handle.executor_.execute(() -> {
+                if (!handle.closed_)
+                {
+                    handle.onClosed_.add(_callback);
+                }
+                else if (handle.closedCleanly_)
+                {
+                    _callback.run();
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The handle's thread only stops accepting tasks once the handle is closed.
+            if (handle.closedCleanly_)
+            {
+                _callback.run();
+            }
+            else
+            {
+                log_.debug("whenClosed - Write handle for [{}] was not closed cleanly. Dropping callback.", handle.path_);
+            }
+        }
+    }
+
+    // Finalizes the replica and reports any error from finalizing it earlier.
+    // Used to implement COMMIT.
+    void commit(long _inodeNumber) throws IOException
+    {
+        WriteHandle handle = handles_.remove(_inodeNumber);
+        IOException error = null;
+
+        if (null != handle)
+        {
+            try
+            {
+                handle.close();
+            }
+            catch (IOException e)
+            {
+                error = e;
+            }
+        }
+
+        IOException earlier = closeErrors_.remove(_inodeNumber);
+
+        if (null != error)
+        {
+            throw error;
+        }
+
+        if (null != earlier)
+        {
+            throw earlier;
+        }
+    }
+
+    // Finalizes the replica. Errors are reported by the next COMMIT.
+    void close(long _inodeNumber)
+    {
+        WriteHandle handle = handles_.remove(_inodeNumber);
+
+        if (null != handle)
+        {
+            closeAndDeferErrors(_inodeNumber, handle);
+        }
+    }
+
+    // Closes the handle and forgets any error (e.g. the data object was removed).
+    void discard(long _inodeNumber)
+    {
+        close(_inodeNumber);
+        closeErrors_.remove(_inodeNumber);
+    }
+
+    void close()
+    {
+        if (null != scheduler_)
+        {
+            scheduler_.shutdownNow();
+        }
+
+        handles_.forEach((inodeNumber, handle) -> {
+            if (handles_.remove(inodeNumber, handle))
+            {
+                closeAndDeferErrors(inodeNumber, handle);
+            }
+        });
+    }
+
+    private interface HandleTask
+    {
+        void run(WriteHandle _handle) throws IOException;
+    }
+
+    private void execute(long _inodeNumber, IRODSAccount _acct, String _path, HandleTask _task) throws IOException
+    {
+        // A handle may be closed by another thread between the lookup and the write.
+        // When that happens, the write is retried once against a freshly opened handle.
+        for (int attempt = 0;; ++attempt)
+        {
+            WriteHandle handle = acquire(_inodeNumber, _acct, _path);
+
+            try
+            {
+                handle.submit(() -> {
+                    _task.run(handle);
+                    return null;
+                });
+
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                if (attempt > 0)
+                {
+                    throw new IOException("Write handle closed while writing [" + _path + "]", e);
+                }
+            }
+            catch (IOException e)
+            {
+                // The state of the replica is unknown. Do not let later writes reuse the handle.
+                if (handles_.remove(_inodeNumber, handle))
+                {
+                    closeAndDeferErrors(_inodeNumber, handle);
+                }
+
+                throw e;
+            }
+            finally
+            {
+                release(_inodeNumber, handle);
+            }
+        }
+    }
+
+    private WriteHandle acquire(long _inodeNumber, IRODSAccount _acct, String _path)
+    {
+        final WriteHandle[] replaced = new WriteHandle[1];
+        final boolean[] opened = new boolean[1];
+
+        WriteHandle handle = handles_.compute(_inodeNumber, (k, h) -> {
+            if (null != h && h.acct_.getUserName().equals(_acct.getUserName()) && h.path_.equals(_path))
+            {
+                metrics_.increment("write_handle_cache.hits");
+                h.writers_.incrementAndGet();
+                h.touch();
+                return h;
+            }
+
+            // A handle opened by another user (or for an old path) is not shared.
+            replaced[0] = h;
+            opened[0] = true;
+            metrics_.increment("write_handle_cache.misses");
+
+            WriteHandle newHandle = new WriteHandle(_inodeNumber, _acct, _path);
+            newHandle.writers_.incrementAndGet();
+
+            return newHandle;
+        });
+
+        if (null != replaced[0])
+        {
+            closeAndDeferErrors(_inodeNumber, replaced[0]);
+        }
+
+        if (opened[0] && handles_.size() > maxHandles_)
+        {
+            evictLeastRecentlyUsedHandle(handle);
+        }
+
+        return handle;
+    }
+
+    private void release(long _inodeNumber, WriteHandle _handle)
+    {
+        _handle.touch();
+
+        if (0 == _handle.writers_.decrementAndGet() && _handle.evicted_)
+        {
+            closeIfUnused(_inodeNumber, _handle);
+        }
+    }
+
+    // Closes the handle unless a writer is using it. Returns true if it was closed.
+    private boolean closeIfUnused(long _inodeNumber, WriteHandle _handle)
+    {
+        final boolean[] removed = new boolean[1];
+
+        // The check is atomic with acquire(), which registers writers inside compute().
+        handles_.computeIfPresent(_inodeNumber, (k, h) -> {
+            if (h == _handle && 0 == h.writers_.get())
+            {
+                removed[0] = true;
+                return null;
+            }
+
+            return h;
+        });
+
+        if (!removed[0])
+        {
+            return false;
+        }
+
+        closeAndDeferErrors(_inodeNumber, _handle);
+
+        return true;
+    }
+
+    // Closes the least recently used handle, or has its last writer close it.
+    private void evictLeastRecentlyUsedHandle(WriteHandle _exclude)
+    {
+        handles_.entrySet().stream()
+            .filter(e -> e.getValue() != _exclude && !e.getValue().evicted_)
+            .min(Comparator.comparingLong(e -> e.getValue().lastAccessTime_))
+            .ifPresent(e -> {
+                WriteHandle handle = e.getValue();
+                log_.debug("evictLeastRecentlyUsedHandle - Evicting write handle for [{}] ...", handle.path_);
+                metrics_.increment("write_handle_cache.evictions");
+
+                // A writer finishing after this point sees the flag and closes the handle.
+                handle.evicted_ = true;
+                closeIfUnused(e.getKey(), handle);
+            });
+    }
+
+    private void closeAndDeferErrors(long _inodeNumber, WriteHandle _handle)
+    {
+        try
+        {
+            _handle.close();
+        }
+        catch (IOException e)
+        {
+            log_.error("closeAndDeferErrors - Could not close write handle for [{}]: {}", _handle.path_, e.getMessage());
+            closeErrors_.put(_inodeNumber, e);
+        }
+    }
+
+    private void closeIdleHandles()
+    {
+        final long now = System.currentTimeMillis();
+
+        handles_.forEach((inodeNumber, handle) -> {
+            if (handle.writers_.get() > 0 || now - handle.lastAccessTime_ < idleTimeoutInMillis_)
+            {
+                return;
+            }
+
+            // Do not close a handle a writer acquired after the check above.
+            if (closeIfUnused(inodeNumber, handle))
+            {
+                log_.debug("closeIdleHandles - Closed idle write handle for [{}].", handle.path_);
+            }
+        });
+    }
+
+    private final class WriteHandle
+    {
+        private final long inodeNumber_;
+        private final IRODSAccount acct_;
+        private final String path_;
+        private final ExecutorService executor_;
+        private final AtomicInteger writers_;
+        private volatile long lastAccessTime_;
+        private volatile long end_;
+        private volatile boolean opened_;
+        private volatile boolean evicted_;
+
+        // Only accessed by the handle's thread.
+        private IRODSRandomAccessFile file_;
+        private long position_;
+        private boolean closed_;
+        private volatile boolean closedCleanly_;
+        private final List<Runnable> onClosed_ = new ArrayList<>();
+
+        WriteHandle(long _inodeNumber, IRODSAccount _acct, String _path)
+        {
+            inodeNumber_ = _inodeNumber;
+            acct_ = _acct;
+            path_ = _path;
+            executor_ = Executors.newSingleThreadExecutor();
+            writers_ = new AtomicInteger();
+            end_ = -1;
+            touch();
+        }
+
+        void touch()
+        {
+            lastAccessTime_ = System.currentTimeMillis();
+        }
+
+        // Must be called on the handle's thread.
+        void write(byte[] _data, int _dataOffset, long _offset, int _count) throws IOException
+        {
+            if (closed_)
+            {
+                // The write was queued behind the close. The caller retries with a new handle.
+                throw new RejectedExecutionException();
+            }
+
+            if (null == file_)
+            {
+                log_.debug("write - Opening write handle for [{}] ...", path_);
+                metrics_.increment("write_handle_cache.opens");
+
+                try
+                {
+                    final var coordinated = true;
+                    file_ = factory_.getIRODSFileFactory(acct_).instanceIRODSRandomAccessFile(path_, OpenFlags.READ_WRITE, coordinated);
+                }
+                catch (JargonException e)
+                {
+                    throw new IOException(e);
+                }
+
+                position_ = 0;
+                opened_ = true;
+            }
+
+            // Sequential writes do not require a seek.
+            if (position_ != _offset)
+            {
+                file_.seek(_offset, FileIOOperations.SeekWhenceType.SEEK_START);
+                position_ = _offset;
+            }
+
+            file_.write(_data, _dataOffset, _count);
+            position_ += _count;
+            end_ = Math.max(end_, position_);
+        }
+
+        <T> T submit(Callable<T> _task) throws IOException
+        {
+            try
+            {
+                return executor_.submit(_task).get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof RejectedExecutionException ree)
+                {
+                    throw ree;
+                }
+
+                throw (e.getCause() instanceof IOException ioe) ? ioe : new IOException(e.getCause());
+            }
+        }
+
+        // Waits for pending writes, then closes the data object (finalizing the replica).
+        void close() throws IOException
+        {
+            try
+            {
+                submit(() -> {
+                    closed_ = true;
+
+                    try
+                    {
+                        if (null != file_)
+                        {
+                            log_.debug("close - Closing write handle for [{}] ...", path_);
+                            metrics_.increment("write_handle_cache.closes");
+                            file_.close();
+                        }
+
+                        closedCleanly_ = true;
+                        onClosed_.forEach(Runnable::run);
+                    }
+                    finally
+                    {
+                        onClosed_.clear();
+                        file_ = null;
+                        factory_.closeSessionAndEatExceptions();
+                    }
+
+                    return null;
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Already closed.
+            }
+            finally
+            {
+                executor_.shutdown();
+
+                if (opened_)
+                {
+                    listener_.changed(inodeNumber_, acct_, path_);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,665 @@
+package org.irods.nfsrods.vfs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// An append-only journal on local disk of the WRITEs accepted by the write-behind
+// buffer. A WRITE is acknowledged once its record is on disk, so buffered data
+// survives a crash of NFSRODS and is written to iRODS when the server restarts.
+//
+// Concurrent writers share fsync calls (group commit). The writer that finds no
+// sync in progress syncs everything appended so far while the others wait for it.
+//
+// The journal is split into segments. Once every WRITE recorded in a segment has
+// reached iRODS (see release()) and every older segment is gone, the segment is
+// deleted, or truncated if it is the one being appended to. Release records are synced
+// (sharing fsync calls with appends) before release() returns. A lost release record
+// would replay stale data over whatever the data object holds by then (e.g. after it
+// was removed or renamed and re-created).
+//
+// A failed append is cut off so that records appended after it are replayed. If that
+// is not possible, or an fsync fails, every later journaled WRITE is refused.
+//
+// Record layout (big-endian):
+//
+//   magic (4) | body length (4) | CRC32C of body (4) | body
+//
+//   WRITE body:   type (1) | sequence (8) | inode (8) | offset (8)
+//                 | user length (2) | user | path length (4) | path | data
+//   RELEASE body: type (1) | sequence (8) | inode (8)
+class WriteJournal
+{
+    private static final Logger log_ = LogManager.getLogger(WriteJournal.class);
+
+    private static final int MAGIC = 0x4E464A31; // "NFJ1"
+    private static final int HEADER_SIZE = 12;
+    private static final byte WRITE = 1;
+    private static final byte RELEASE = 2;
+    private static final long MAX_SEGMENT_SIZE = 64L << 20;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Applies a journaled WRITE to iRODS during replay.
+    interface Replayer
+    {
+        void write(String _user, String _path, long _offset, byte[] _data) throws IOException;
+    }
+
+    // A segment and, for every inode with WRITEs in it, the last sequence number of those WRITEs.
+    private static final class Segment
+    {
+        private final Path path_;
+        private final Map<Long, Long> lastSequences_ = new HashMap<>();
+
+        Segment(Path _path)
+        {
+            path_ = _path;
+        }
+    }
+
+    private final Path directory_;
+    private final Metrics metrics_;
+    private final List<Segment> sealedSegments_;
+    private final Map<Long, Long> releasedSequences_;
+    private final Object syncMonitor_;
+    private Segment segment_;
+    private FileChannel channel_;
+    private long segmentSize_;
+    private long segmentNumber_;
+    private long lastSequence_;
+
+    // Set once the journal can no longer guarantee that acknowledged records are
+    // replayed (e.g. a failed fsync or a torn record that could not be removed).
+    private IOException failure_;
+
+    // Guarded by syncMonitor_.
+    private long syncedSequence_;
+    private boolean syncing_;
+
+    WriteJournal(String _directory, Metrics _metrics)
+    {
+        directory_ = (null != _directory && !_directory.isEmpty()) ? Path.of(_directory) : null;
+        metrics_ = _metrics;
+        sealedSegments_ = new ArrayList<>();
+        releasedSequences_ = new HashMap<>();
+        syncMonitor_ = new Object();
+    }
+
+    boolean isEnabled()
+    {
+        return null != directory_;
+    }
+
+    // Writes the WRITEs left in the journal by the previous run to iRODS, then
+    // starts a new journal. Records whose data object no longer exists are skipped.
+    // Any other failure is thrown and the journal is left untouched so that the
+    // next start can try again.
+    void replay(Replayer _replayer) throws IOException
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+
+        Files.createDirectories(directory_);
+
+        List<Path> segments = listSegments();
+
+        if (!segments.isEmpty())
+        {
+            log_.info("replay - Replaying [{}] journal segments in [{}] ...", segments.size(), directory_);
+
+            // The first pass finds the WRITEs that reached iRODS before the restart.
+            Map<Long, Long> released = new HashMap<>();
+
+            for (Path segment : segments)
+            {
+                readSegment(segment, (type, sequence, inode, body) -> {
+                    if (RELEASE == type)
+                    {
+                        released.merge(inode, sequence, Math::max);
+                    }
+                });
+            }
+
+            final long[] counts = new long[2];
+
+            for (Path segment : segments)
+            {
+                readSegment(segment, (type, sequence, inode, body) -> {
+                    if (WRITE != type || sequence <= released.getOrDefault(inode, 0L))
+                    {
+                        return;
+                    }
+
+                    final long offset = body.getLong();
+                    final String user = readString(body, Short.toUnsignedInt(body.getShort()));
+                    final String path = readString(body, body.getInt());
+                    final byte[] data = new byte[body.remaining()];
+                    body.get(data);
+
+                    try
+                    {
+                        _replayer.write(user, path, offset, data);
+                        ++counts[0];
+                    }
+                    catch (FileNotFoundException e)
+                    {
+                        log_.warn("replay - Skipping journaled write to [{}]: {}", path, e.getMessage());
+                        ++counts[1];
+                    }
+                });
+            }
+
+            log_.info("replay - Replayed [{}] journaled writes. Skipped [{}].", counts[0], counts[1]);
+
+            for (Path segment : segments)
+            {
+                Files.delete(segment);
+            }
+
+            segmentNumber_ = parseSegmentNumber(segments.get(segments.size() - 1)) + 1;
+        }
+
+        openSegment();
+    }
+
+    // Appends a WRITE record and returns its sequence number. The record is not
+    // guaranteed to be on disk until sync() returns.
+    synchronized long append(long _inodeNumber, String _user, String _path, long _offset, byte[] _data) throws IOException
+    {
+        checkUsable();
+
+        final long sequence = ++lastSequence_;
+        final byte[] user = _user.getBytes(StandardCharsets.UTF_8);
+        final byte[] path = _path.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + 8 + 2 + user.length + 4 + path.length + _data.length);
+        body.put(WRITE).putLong(sequence).putLong(_inodeNumber).putLong(_offset);
+        body.putShort((short) user.length).put(user);
+        body.putInt(path.length).put(path);
+        body.put(_data);
+
+        // Recorded first. Writing the record may seal the segment.
+        final Segment segment = segment_;
+        final Long previous = segment.lastSequences_.put(_inodeNumber, sequence);
+
+        try
+        {
+            writeRecord(body.flip());
+        }
+        catch (IOException e)
+        {
+            // The record is not in the journal. The segment still holds the inode's earlier WRITEs (if any).
+            if (!sealedSegments_.contains(segment))
+            {
+                if (null == previous)
+                {
+                    segment.lastSequences_.remove(_inodeNumber);
+                }
+                else
+                {
+                    segment.lastSequences_.put(_inodeNumber, previous);
+                }
+            }
+
+            throw e;
+        }
+
+        metrics_.increment("write_journal.appends");
+        metrics_.add("write_journal.bytes_appended", _data.length);
+
+        return sequence;
+    }
+
+    // Returns once the record with the given sequence number (and every record
+    // before it) is on disk.
+    void sync(long _sequence) throws IOException
+    {
+        while (true)
+        {
+            synchronized (syncMonitor_)
+            {
+                while (syncing_ && syncedSequence_ < _sequence)
+                {
+                    try
+                    {
+                        syncMonitor_.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+
+                if (syncedSequence_ >= _sequence)
+                {
+                    return;
+                }
+
+                // This writer syncs for everyone waiting.
+                syncing_ = true;
+            }
+
+            long target = 0;
+            FileChannel channel = null;
+            boolean synced = false;
+
+            try
+            {
+                synchronized (this)
+                {
+                    target = lastSequence_;
+                    channel = channel_;
+
+                    if (null != failure_)
+                    {
+                        throw new IOException("Write journal is unusable", failure_);
+                    }
+                }
+
+                if (null == channel)
+                {
+                    throw new IOException("Write journal is closed");
+                }
+
+                channel.force(false);
+                metrics_.increment("write_journal.syncs");
+                synced = true;
+            }
+            catch (ClosedChannelException e)
+            {
+                // The segment was sealed (and synced) by a concurrent append, or the
+                // journal was closed (which syncs it).
+                synced = true;
+            }
+            catch (IOException e)
+            {
+                // Whether any of the unsynced records reached the disk is unknown, and a
+                // later fsync may succeed without writing them.
+                if (null != channel)
+                {
+                    fail(e);
+                }
+
+                throw e;
+            }
+            finally
+            {
+                synchronized (syncMonitor_)
+                {
+                    if (synced)
+                    {
+                        syncedSequence_ = Math.max(syncedSequence_, target);
+                    }
+
+                    syncing_ = false;
+                    syncMonitor_.notifyAll();
+                }
+            }
+        }
+    }
+
+    synchronized long getLastSequence()
+    {
+        return lastSequence_;
+    }
+
+    // Records that every WRITE to the inode up to and including the given sequence
+    // number has reached iRODS, and deletes the segments that are no longer needed.
+    // Returns once the record is on disk.
+    void release(long _inodeNumber, long _sequence)
+    {
+        try
+        {
+            final long record = appendRelease(_inodeNumber, _sequence);
+
+            if (record < 0)
+            {
+                return;
+            }
+
+            sync(record);
+            removeReleasedSegments(_inodeNumber, _sequence);
+        }
+        catch (IOException e)
+        {
+            log_.error("release - Could not update journal: {}", e.getMessage());
+        }
+    }
+
+    synchronized void close()
+    {
+        if (null == channel_)
+        {
+            return;
+        }
+
+        try
+        {
+            channel_.force(false);
+            channel_.close();
+
+            synchronized (syncMonitor_)
+            {
+                syncedSequence_ = Math.max(syncedSequence_, lastSequence_);
+                syncMonitor_.notifyAll();
+            }
+        }
+        catch (IOException e)
+        {
+            log_.error("close - Could not close journal: {}", e.getMessage());
+        }
+
+        channel_ = null;
+    }
+
+    // Appends a RELEASE record and returns the sequence number to sync(), or -1 if the
+    // WRITEs have already been released. Release records take a sequence number of
+    // their own so that they can be synced like WRITE records.
+    private synchronized long appendRelease(long _inodeNumber, long _sequence) throws IOException
+    {
+        if (null == channel_ || releasedSequences_.getOrDefault(_inodeNumber, 0L) >= _sequence)
+        {
+            return -1;
+        }
+
+        checkUsable();
+
+        final long record = ++lastSequence_;
+
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8);
+        body.put(RELEASE).putLong(_sequence).putLong(_inodeNumber);
+        writeRecord(body.flip());
+
+        metrics_.increment("write_journal.releases");
+
+        return record;
+    }
+
+    // Records the release and deletes the segments whose WRITEs have all been released.
+    // Must only be called once the release record is on disk, since other release
+    // records may not be yet.
+    private synchronized void removeReleasedSegments(long _inodeNumber, long _sequence) throws IOException
+    {
+        if (null == channel_)
+        {
+            return;
+        }
+
+        releasedSequences_.merge(_inodeNumber, _sequence, Math::max);
+
+        // Release records cover WRITEs in the same or earlier segments, so segments are
+        // deleted oldest first.
+        while (!sealedSegments_.isEmpty() && isReleased(sealedSegments_.get(0)) && deleteSegment(sealedSegments_.get(0)))
+        {
+            sealedSegments_.remove(0);
+        }
+
+        // Start the current segment over when nothing in it is needed either.
+        if (sealedSegments_.isEmpty() && !segment_.lastSequences_.isEmpty() && isReleased(segment_))
+        {
+            channel_.truncate(0);
+            segment_.lastSequences_.clear();
+            segmentSize_ = 0;
+        }
+
+        // Forget inodes that no segment refers to.
+        releasedSequences_.keySet().removeIf(inodeNumber -> !isReferenced(inodeNumber));
+    }
+
+    // Replay stops at the first incomplete record of a segment. A record that could not
+    // be written completely is therefore cut off again, so that the records appended
+    // after it are not lost. If that fails, the journal is unusable.
+    private void writeRecord(ByteBuffer _body) throws IOException
+    {
+        CRC32C crc = new CRC32C();
+        crc.update(_body.duplicate());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(_body.remaining()).putInt((int) crc.getValue());
+
+        ByteBuffer[] buffers = { header.flip(), _body };
+        final long length = HEADER_SIZE + _body.remaining();
+        final long position = channel_.position();
+
+        try
+        {
+            while (buffers[1].hasRemaining())
+            {
+                channel_.write(buffers);
+            }
+        }
+        catch (IOException e)
+        {
+            log_.error("writeRecord - Could not write journal record: {}", e.getMessage());
+
+            try
+            {
+                channel_.truncate(position);
+                channel_.position(position);
+            }
+            catch (IOException te)
+            {
+                fail(te);
+            }
+
+            throw e;
+        }
+
+        segmentSize_ += length;
+
+        if (segmentSize_ >= MAX_SEGMENT_SIZE)
+        {
+            try
+            {
+                sealSegment();
+                openSegment();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+                throw e;
+            }
+        }
+    }
+
+    // Must be called while holding the journal's lock.
+    private void checkUsable() throws IOException
+    {
+        if (null != failure_)
+        {
+            throw new IOException("Write journal is unusable", failure_);
+        }
+
+        if (null == channel_)
+        {
+            throw new IOException("Write journal is closed");
+        }
+    }
+
+    private synchronized void fail(IOException _e)
+    {
+        if (null == failure_)
+        {
+            log_.error("fail - Write journal is unusable. Journaled writes are refused from now on: {}", _e.getMessage());
+            failure_ = _e;
+        }
+    }
+
+    private boolean isReleased(Segment _segment)
+    {
+        for (Map.Entry<Long, Long> e : _segment.lastSequences_.entrySet())
+        {
+            if (releasedSequences_.getOrDefault(e.getKey(), 0L) < e.getValue())
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isReferenced(long _inodeNumber)
+    {
+        if (segment_.lastSequences_.containsKey(_inodeNumber))
+        {
+            return true;
+        }
+
+        return sealedSegments_.stream().anyMatch(segment -> segment.lastSequences_.containsKey(_inodeNumber));
+    }
+
+    // Syncs the current segment. Everything appended so far is then on disk.
+    private void sealSegment() throws IOException
+    {
+        channel_.force(false);
+        channel_.close();
+        sealedSegments_.add(segment_);
+
+        synchronized (syncMonitor_)
+        {
+            syncedSequence_ = Math.max(syncedSequence_, lastSequence_);
+            syncMonitor_.notifyAll();
+        }
+    }
+
+    private void openSegment() throws IOException
+    {
+        Path path = directory_.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segmentNumber_++, SEGMENT_SUFFIX));
+
+        channel_ = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segment_ = new Segment(path);
+        segmentSize_ = 0;
+
+        // Make the new segment's directory entry durable.
+        try (FileChannel dir = FileChannel.open(directory_, StandardOpenOption.READ))
+        {
+            dir.force(true);
+        }
+        catch (IOException e)
+        {
+            // Not supported on every platform.
+        }
+    }
+
+    private static boolean deleteSegment(Segment _segment)
+    {
+        try
+        {
+            Files.deleteIfExists(_segment.path_);
+            return true;
+        }
+        catch (IOException e)
+        {
+            log_.error("deleteSegment - Could not delete [{}]: {}", _segment.path_, e.getMessage());
+            return false;
+        }
+    }
+
+    private List<Path> listSegments() throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory_))
+        {
+            return paths.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private static long parseSegmentNumber(Path _segment)
+    {
+        String name = _segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private interface RecordVisitor
+    {
+        void visit(byte _type, long _sequence, long _inodeNumber, ByteBuffer _body) throws IOException;
+    }
+
+    // Visits the valid records of the segment. A record that is incomplete or fails
+    // its checksum marks the point where NFSRODS stopped writing. Nothing after it
+    // was acknowledged.
+    private void readSegment(Path _segment, RecordVisitor _visitor) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(_segment, StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+            while (true)
+            {
+                header.clear();
+
+                if (!readFully(channel, header) || MAGIC != header.getInt(0))
+                {
+                    return;
+                }
+
+                final int length = header.getInt(4);
+
+                if (length < 17 || length > channel.size() - channel.position())
+                {
+                    log_.warn("readSegment - Ignoring torn record at the end of [{}].", _segment);
+                    return;
+                }
+
+                ByteBuffer body = ByteBuffer.allocate(length);
+
+                if (!readFully(channel, body))
+                {
+                    return;
+                }
+
+                CRC32C crc = new CRC32C();
+                crc.update(body.flip().duplicate());
+
+                if ((int) crc.getValue() != header.getInt(8))
+                {
+                    log_.warn("readSegment - Ignoring corrupt record at the end of [{}].", _segment);
+                    return;
+                }
+
+                _visitor.visit(body.get(), body.getLong(), body.getLong(), body);
+            }
+        }
+    }
+
+    private static boolean readFully(FileChannel _channel, ByteBuffer _buffer) throws IOException
+    {
+        while (_buffer.hasRemaining())
+        {
+            if (_channel.read(_buffer) < 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String readString(ByteBuffer _buffer, int _length)
+    {
+        byte[] bytes = new byte[_length];
+        _buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,125 @@
+package org.irods.nfsrods.vfs;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcache.nfs.vfs.Stat;
+
+// Tracks the size and modify time of data objects being written so that the cached
+// attributes (stat and listing caches) do not have to be evicted on every WRITE.
+// GETATTR, READDIR and READ merge the overlay into whatever attributes they have,
+// so the change attribute and the version of cached data change with every WRITE.
+//
+// The size lives for as long as the caches it compensates for. Attributes cached
+// before the last WRITE have expired by the time it does, and attributes fetched after
+// the last WRITE already include it.
+//
+// The modify time is kept longer. iRODS timestamps are in seconds, so the modify time
+// iRODS reports for the last WRITE is usually lower than the one handed out by the
+// overlay. The overlay's modify time stays a floor for the mtime and change attribute
+// until iRODS reports a modify time at least as new, so neither ever goes backwards.
+class WriteOverlay
+{
+    private record Entry(long size, long modifyTime, long expirationTime) {}
+
+    // Expired entries are only dropped (oldest writes first) once the overlay grows past
+    // this many entries.
+    private static final int MAX_ENTRIES = 100_000;
+
+    private final long timeToLiveInMillis_;
+    private final Map<Long, Entry> entries_;
+
+    WriteOverlay(long _timeToLiveInMillis)
+    {
+        timeToLiveInMillis_ = _timeToLiveInMillis;
+        entries_ = new ConcurrentHashMap<>();
+    }
+
+    // Records a successful write that ended at the given offset.
+    void update(long _inodeNumber, long _end)
+    {
+        final long now = System.currentTimeMillis();
+        final Entry entry = new Entry(_end, now, now + timeToLiveInMillis_);
+
+        entries_.merge(_inodeNumber, entry, (a, b) -> new Entry(Math.max(a.size(), b.size()), b.modifyTime(), b.expirationTime()));
+
+        if (entries_.size() > MAX_ENTRIES)
+        {
+            sweep(now);
+        }
+    }
+
+    // Forgets the size of the writes, but not their modify time. Must be called when
+    // the data object shrinks.
+    void truncated(long _inodeNumber)
+    {
+        entries_.computeIfPresent(_inodeNumber, (k, e) -> new Entry(-1, e.modifyTime(), e.expirationTime()));
+    }
+
+    // Forgets the inode. Must be called when the data object is removed.
+    void remove(long _inodeNumber)
+    {
+        entries_.remove(_inodeNumber);
+    }
+
+    // Returns the attributes with the size and modify time of recent writes merged in.
+    // _minSize is the end of any data not yet visible in iRODS (or -1). The Stat passed
+    // in is never modified since it may be shared through the caches.
+    Stat apply(long _inodeNumber, Stat _stat, long _minSize)
+    {
+        Entry entry = entries_.get(_inodeNumber);
+
+        if (null != entry && entry.modifyTime() <= _stat.getMTime())
+        {
+            // iRODS has caught up with the writes.
+            if (entry.expirationTime() <= System.currentTimeMillis())
+            {
+                entries_.remove(_inodeNumber, entry);
+            }
+
+            if (_minSize <= _stat.getSize() && entry.size() <= _stat.getSize())
+            {
+                return _stat;
+            }
+        }
+
+        final boolean expired = (null != entry && entry.expirationTime() <= System.currentTimeMillis());
+        final long size = Math.max(_minSize, (null != entry && !expired) ? entry.size() : -1);
+        final long modifyTime = (null != entry) ? entry.modifyTime() : -1;
+
+        if (size <= _stat.getSize() && modifyTime <= _stat.getMTime())
+        {
+            return _stat;
+        }
+
+        Stat stat = _stat.clone();
+
+        if (size > stat.getSize())
+        {
+            stat.setSize(size);
+        }
+
+        if (modifyTime > stat.getMTime())
+        {
+            stat.setMTime(modifyTime);
+            stat.setCTime(modifyTime);
+            stat.setGeneration(Math.max(modifyTime, stat.getGeneration()));
+        }
+
+        return stat;
+    }
+
+    private void sweep(long _now)
+    {
+        // Only the modify time of an expired entry is still needed, and only until iRODS
+        // reports a newer one. That is not known here, so half of the entries are kept.
+        entries_.entrySet().stream()
+            .filter(e -> e.getValue().expirationTime() <= _now)
+            .sorted(Comparator.comparingLong(e -> e.getValue().modifyTime()))
+            .limit(entries_.size() - MAX_ENTRIES / 2)
+            .map(Map.Entry::getKey)
+            .toList()
+            .forEach(entries_::remove);
+    }
+}
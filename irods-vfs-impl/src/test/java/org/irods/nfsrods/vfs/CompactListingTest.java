@@ -0,0 +1,135 @@
+package org.irods.nfsrods.vfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import org.irods.jargon.core.protovalues.FilePermissionEnum;
+import org.irods.jargon.core.protovalues.UserTypeEnum;
+import org.irods.jargon.core.pub.domain.UserFilePermission;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry;
+import org.irods.jargon.core.query.CollectionAndDataObjectListingEntry.ObjectType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CompactListingTest
+{
+    private static final String COLLECTION = "/tempZone/home/alice";
+    private static final int ENTRIES = 10;
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+    @Test
+    public void keepsSmallListingsOnTheHeap() throws IOException
+    {
+        CompactListing listing = new CompactListing(COLLECTION, folder_.getRoot().toPath(), ENTRIES + 1);
+
+        addEntries(listing);
+
+        assertFalse(listing.isSpilled());
+        assertEntries(listing);
+
+        listing.close();
+    }
+
+    @Test
+    public void readsBackSpilledEntries() throws IOException
+    {
+        CompactListing listing = new CompactListing(COLLECTION, folder_.getRoot().toPath(), 4);
+
+        addEntries(listing);
+
+        assertTrue(listing.isSpilled());
+        assertEntries(listing);
+
+        // Entries of another listing are added as they are.
+        CompactListing copy = new CompactListing(COLLECTION, folder_.getRoot().toPath(), 4);
+
+        for (int i = 0; i < listing.size(); ++i)
+        {
+            copy.add(listing.get(i));
+        }
+
+        assertTrue(copy.isSpilled());
+        assertEntries(copy);
+
+        listing.close();
+        copy.close();
+    }
+
+    @Test
+    public void sharesPermissionLists() throws IOException
+    {
+        CompactListing listing = new CompactListing(COLLECTION, folder_.getRoot().toPath(), 4);
+
+        addEntries(listing);
+
+        // Every other entry has the same permissions.
+        assertSame(listing.get(0).getUserFilePermission(), listing.get(2).getUserFilePermission());
+        assertSame(listing.get(7).getUserFilePermission(), listing.get(9).getUserFilePermission());
+
+        listing.close();
+    }
+
+    private static void addEntries(CompactListing _listing) throws IOException
+    {
+        for (int i = 0; i < ENTRIES; ++i)
+        {
+            _listing.add(newEntry(i));
+        }
+
+        assertEquals(ENTRIES, _listing.size());
+    }
+
+    private static CollectionAndDataObjectListingEntry newEntry(int _index)
+    {
+        final boolean collection = (_index % 3 == 0);
+
+        CollectionAndDataObjectListingEntry entry = new CollectionAndDataObjectListingEntry();
+        entry.setId(1000 + _index);
+        entry.setObjectType(collection ? ObjectType.COLLECTION : ObjectType.DATA_OBJECT);
+        entry.setPathOrName(collection ? COLLECTION + "/dir-" + _index : "file-\u00e9-" + _index);
+        entry.setDataSize(collection ? 0 : 4096L * _index);
+        entry.setCreatedAt(new Date(1_600_000_000_000L + _index));
+        entry.setModifiedAt(new Date(1_700_000_000_000L + _index));
+        entry.setOwnerName((_index % 2 == 0) ? "alice" : "bob");
+        entry.setUserFilePermission(newPermissions(_index % 2));
+
+        return entry;
+    }
+
+    private static List<UserFilePermission> newPermissions(int _variant)
+    {
+        FilePermissionEnum perm = (0 == _variant) ? FilePermissionEnum.OWN : FilePermissionEnum.READ;
+        return List.of(new UserFilePermission("alice", "10001", perm, UserTypeEnum.RODS_USER, "tempZone"));
+    }
+
+    private static void assertEntries(CompactListing _listing) throws IOException
+    {
+        assertEquals(ENTRIES, _listing.size());
+
+        for (int i = 0; i < ENTRIES; ++i)
+        {
+            CollectionAndDataObjectListingEntry expected = newEntry(i);
+            CompactListing.Entry entry = _listing.get(i);
+
+            assertEquals(expected.getPathOrName(), entry.getPathOrName());
+            assertEquals(expected.getId(), entry.getId());
+            assertEquals(expected.getObjectType(), entry.getObjectType());
+            assertEquals(expected.getDataSize(), entry.getDataSize());
+            assertEquals(expected.getCreatedAt().getTime(), entry.getCreateTime());
+            assertEquals(expected.getModifiedAt().getTime(), entry.getModifyTime());
+            assertEquals(expected.getOwnerName(), entry.getOwnerName());
+            assertEquals(1, entry.getUserFilePermission().size());
+            assertEquals(expected.getUserFilePermission().get(0).getFilePermissionEnum(),
+                         entry.getUserFilePermission().get(0).getFilePermissionEnum());
+        }
+    }
+}
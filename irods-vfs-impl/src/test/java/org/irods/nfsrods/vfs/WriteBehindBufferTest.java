@@ -0,0 +1,161 @@
+package org.irods.nfsrods.vfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Exercises the extent bookkeeping of a single data object. The buffer is disabled,
+// so nothing is written to iRODS.
+public class WriteBehindBufferTest
+{
+    private Metrics metrics_;
+    private WriteBehindBuffer buffer_;
+    private WriteBehindBuffer.DirtyFile file_;
+
+    @Before
+    public void setUp()
+    {
+        metrics_ = new Metrics(0);
+        buffer_ = new WriteBehindBuffer(null, 0, 1 << 20, 1, 0, 0, null, new WriteJournal(null, metrics_), null, metrics_);
+        file_ = buffer_.new DirtyFile(1, null, "/tempZone/home/alice/a");
+    }
+
+    @After
+    public void tearDown()
+    {
+        metrics_.close();
+    }
+
+    @Test
+    public void replacesOverlappingParts() throws IOException
+    {
+        file_.add(0, fill(10, 'a'));
+        file_.add(20, fill(10, 'b'));
+
+        // Covers the end of the first extent and the start of the second.
+        file_.add(5, fill(20, 'c'));
+
+        assertEquals(30, file_.getEnd());
+        assertEquals(30, bytesBuffered());
+        assertEquals("aaaaaccccccccccccccccccccbbbbb", flatten(file_.take()));
+        assertEquals(0, bytesBuffered());
+    }
+
+    @Test
+    public void splitsExtentAroundNewerWrite() throws IOException
+    {
+        file_.add(0, fill(30, 'a'));
+        file_.add(10, fill(5, 'b'));
+
+        TreeMap<Long, byte[]> extents = file_.take();
+
+        assertEquals(3, extents.size());
+        assertEquals("aaaaaaaaaabbbbbaaaaaaaaaaaaaaa", flatten(extents));
+    }
+
+    @Test
+    public void measuresContiguousRuns() throws IOException
+    {
+        file_.add(0, fill(10, 'a'));
+        file_.add(10, fill(10, 'b'));
+        file_.add(30, fill(10, 'c'));
+
+        assertEquals(20, file_.getRunLength(10, Long.MAX_VALUE));
+        assertEquals(10, file_.getRunLength(30, Long.MAX_VALUE));
+
+        TreeMap<Long, byte[]> runs = file_.takeRuns(20);
+
+        assertEquals(2, runs.size());
+        assertEquals(10, bytesBuffered());
+        assertEquals(40, file_.getEnd());
+    }
+
+    @Test
+    public void restoresExtentsOfFailedFlush() throws IOException
+    {
+        file_.add(0, fill(10, 'a'));
+        file_.add(20, fill(10, 'b'));
+
+        TreeMap<Long, byte[]> taken = file_.take();
+
+        // Written while the flush was in progress. Newer than what is put back.
+        file_.add(5, fill(20, 'c'));
+
+        IOException error = new IOException("connection lost");
+        file_.restore(taken, error);
+
+        assertSame(error, file_.getError());
+        assertEquals(30, file_.getEnd());
+        assertEquals(30, bytesBuffered());
+        assertEquals("aaaaaccccccccccccccccccccbbbbb", flatten(file_.take()));
+
+        file_.clearError();
+
+        assertEquals(null, file_.getError());
+    }
+
+    @Test
+    public void restoresIntoGapsBetweenNewerExtents() throws IOException
+    {
+        file_.add(0, fill(30, 'a'));
+
+        TreeMap<Long, byte[]> taken = file_.take();
+
+        file_.add(5, fill(5, 'b'));
+        file_.add(15, fill(5, 'c'));
+        file_.restore(taken, new IOException());
+
+        assertEquals("aaaaabbbbbaaaaacccccaaaaaaaaaa", flatten(file_.take()));
+    }
+
+    @Test
+    public void dropsExtentsRestoredAfterDiscard() throws IOException
+    {
+        file_.add(0, fill(10, 'a'));
+
+        TreeMap<Long, byte[]> taken = file_.take();
+
+        file_.retire();
+        file_.restore(taken, new IOException());
+
+        assertTrue(file_.take().isEmpty());
+        assertEquals(0, bytesBuffered());
+    }
+
+    private long bytesBuffered()
+    {
+        return metrics_.get("write_behind.bytes_buffered");
+    }
+
+    private static byte[] fill(int _length, char _c)
+    {
+        byte[] data = new byte[_length];
+        Arrays.fill(data, (byte) _c);
+        return data;
+    }
+
+    // Returns the extents as a string. The extents must be contiguous.
+    private static String flatten(TreeMap<Long, byte[]> _extents)
+    {
+        StringBuilder sb = new StringBuilder();
+        long expected = _extents.isEmpty() ? 0 : _extents.firstKey();
+
+        for (Map.Entry<Long, byte[]> e : _extents.entrySet())
+        {
+            assertEquals(expected, (long) e.getKey());
+            sb.append(new String(e.getValue()));
+            expected += e.getValue().length;
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,195 @@
+package org.irods.nfsrods.vfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WriteJournalTest
+{
+    private record Write(String user, String path, long offset, byte[] data) {}
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+    private Path directory_;
+    private WriteJournal journal_;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory_ = folder_.getRoot().toPath().resolve("journal");
+        journal_ = open();
+    }
+
+    @After
+    public void tearDown()
+    {
+        journal_.close();
+    }
+
+    @Test
+    public void replaysAppendedWrites() throws IOException
+    {
+        journal_.append(1, "alice", "/tempZone/home/alice/a", 0, bytes(4, 1));
+        long sequence = journal_.append(2, "bob", "/tempZone/home/bob/b", 8192, bytes(8, 2));
+        journal_.sync(sequence);
+        journal_.close();
+
+        List<Write> writes = new ArrayList<>();
+        journal_ = open(writes);
+
+        assertEquals(2, writes.size());
+        assertEquals("alice", writes.get(0).user());
+        assertEquals("/tempZone/home/alice/a", writes.get(0).path());
+        assertEquals(0, writes.get(0).offset());
+        assertArrayEquals(bytes(4, 1), writes.get(0).data());
+        assertEquals("bob", writes.get(1).user());
+        assertEquals(8192, writes.get(1).offset());
+        assertArrayEquals(bytes(8, 2), writes.get(1).data());
+
+        // The replayed writes are not replayed again.
+        journal_.close();
+        writes.clear();
+        journal_ = open(writes);
+
+        assertTrue(writes.isEmpty());
+    }
+
+    @Test
+    public void doesNotReplayReleasedWrites() throws IOException
+    {
+        long first = journal_.append(1, "alice", "/tempZone/home/alice/a", 0, bytes(4, 1));
+        journal_.append(2, "alice", "/tempZone/home/alice/b", 0, bytes(4, 2));
+        long last = journal_.append(1, "alice", "/tempZone/home/alice/a", 4, bytes(4, 3));
+        journal_.sync(last);
+
+        // Only the writes to inode 1 up to the first one have reached iRODS.
+        journal_.release(1, first);
+        journal_.close();
+
+        List<Write> writes = new ArrayList<>();
+        journal_ = open(writes);
+
+        assertEquals(2, writes.size());
+        assertArrayEquals(bytes(4, 2), writes.get(0).data());
+        assertArrayEquals(bytes(4, 3), writes.get(1).data());
+    }
+
+    @Test
+    public void ignoresTornRecordAtTheEnd() throws IOException
+    {
+        journal_.append(1, "alice", "/tempZone/home/alice/a", 0, bytes(16, 1));
+        long sequence = journal_.append(1, "alice", "/tempZone/home/alice/a", 16, bytes(16, 2));
+        journal_.sync(sequence);
+        journal_.close();
+
+        // Cut the last record short, as if NFSRODS stopped while writing it.
+        Path segment = listSegments().get(0);
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE))
+        {
+            channel.truncate(channel.size() - 5);
+        }
+
+        List<Write> writes = new ArrayList<>();
+        journal_ = open(writes);
+
+        assertEquals(1, writes.size());
+        assertArrayEquals(bytes(16, 1), writes.get(0).data());
+    }
+
+    @Test
+    public void rollsOverToNewSegments() throws IOException
+    {
+        final int count = 65;
+        long sequence = 0;
+
+        for (int i = 0; i < count; ++i)
+        {
+            sequence = journal_.append(1, "alice", "/tempZone/home/alice/a", (long) i << 20, bytes(1 << 20, i));
+        }
+
+        journal_.sync(sequence);
+
+        assertTrue(listSegments().size() > 1);
+
+        journal_.close();
+
+        List<Write> writes = new ArrayList<>();
+        journal_ = open(writes);
+
+        assertEquals(count, writes.size());
+
+        for (int i = 0; i < count; ++i)
+        {
+            assertEquals((long) i << 20, writes.get(i).offset());
+            assertArrayEquals(bytes(1 << 20, i), writes.get(i).data());
+        }
+    }
+
+    @Test
+    public void deletesReleasedSegments() throws IOException
+    {
+        long sequence = 0;
+
+        for (int i = 0; i < 65; ++i)
+        {
+            sequence = journal_.append(1, "alice", "/tempZone/home/alice/a", (long) i << 20, bytes(1 << 20, i));
+        }
+
+        journal_.sync(sequence);
+        journal_.release(1, sequence);
+
+        List<Path> segments = listSegments();
+
+        assertEquals(1, segments.size());
+        assertEquals(0, Files.size(segments.get(0)));
+    }
+
+    private WriteJournal open() throws IOException
+    {
+        return open(new ArrayList<>());
+    }
+
+    private WriteJournal open(List<Write> _writes) throws IOException
+    {
+        WriteJournal journal = new WriteJournal(directory_.toString(), new Metrics(0));
+        journal.replay((user, path, offset, data) -> _writes.add(new Write(user, path, offset, data)));
+        return journal;
+    }
+
+    private List<Path> listSegments() throws IOException
+    {
+        try (Stream<Path> paths = Files.list(directory_))
+        {
+            return paths.sorted().toList();
+        }
+    }
+
+    private static byte[] bytes(int _length, int _seed)
+    {
+        byte[] data = new byte[_length];
+
+        for (int i = 0; i < _length; ++i)
+        {
+            data[i] = (byte) (_seed * 31 + i);
+        }
+
+        return data;
+    }
+}